@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yanghaoyi.aosp.car.cluster.renderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.yanghaoyi.aosp.car.navigation.CarNavigationInstrumentCluster;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks cached navigation properties of {@link ThreadSafeNavigationRenderer} while its looper is
+ * busy.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThreadSafeNavigationRendererTest {
+    private static final int MIN_INTERVAL_MS = 1000;
+
+    private final HandlerThread mThread = new HandlerThread("NavigationRendererTest");
+    private final CountDownLatch mLooperReleased = new CountDownLatch(1);
+
+    private final NavigationRenderer mRenderer = new NavigationRenderer() {
+        @Override
+        public CarNavigationInstrumentCluster getNavigationProperties() {
+            return CarNavigationInstrumentCluster.createCluster(MIN_INTERVAL_MS);
+        }
+
+        @Override
+        public void onEvent(int eventType, Bundle bundle) {}
+    };
+
+    @Before
+    public void setUp() {
+        mThread.start();
+        // Keeps the looper busy, so properties requested afterwards are not computed.
+        new Handler(mThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLooperReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mLooperReleased.countDown();
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void firstReadTimesOut_returnsNullThenComputedProperties() {
+        NavigationRenderer renderer = ThreadSafeNavigationRenderer.createFor(
+                mThread.getLooper(), mRenderer);
+
+        assertNull(renderer.getNavigationProperties());
+
+        mLooperReleased.countDown();
+        CarNavigationInstrumentCluster properties = renderer.getNavigationProperties();
+        assertNotNull(properties);
+        assertEquals(MIN_INTERVAL_MS, properties.getMinIntervalMillis());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yanghaoyi.aosp.car.navigation;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.yanghaoyi.aosp.car.cluster.renderer.IInstrumentClusterNavigation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks rate limiting of {@link CarNavigationStatusManager} against a local cluster binder.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarNavigationStatusManagerTest {
+    private static final int MIN_INTERVAL_MS = 60 * 1000;
+
+    /** Returns no properties for the first {@code mMissingInfoCount} calls. */
+    private static class FakeCluster extends IInstrumentClusterNavigation.Stub {
+        private int mMissingInfoCount;
+        int infoRequests;
+        int events;
+
+        FakeCluster(int missingInfoCount) {
+            mMissingInfoCount = missingInfoCount;
+        }
+
+        @Override
+        public void onEvent(int eventType, Bundle bundle) {
+            events++;
+        }
+
+        @Override
+        public CarNavigationInstrumentCluster getInstrumentClusterInfo() {
+            infoRequests++;
+            if (mMissingInfoCount > 0) {
+                mMissingInfoCount--;
+                return null;
+            }
+            return CarNavigationInstrumentCluster.createCluster(MIN_INTERVAL_MS);
+        }
+
+        @Override
+        public void onNavigationStateChanged(CarNavigationState state) {
+            events++;
+        }
+    }
+
+    @Test
+    public void missingProperties_fetchedAgainWithNextEvent() throws Exception {
+        // The cluster renderer returns null when computing its properties timed out.
+        FakeCluster cluster = new FakeCluster(1 /* missingInfoCount */);
+        CarNavigationStatusManager manager = new CarNavigationStatusManager(cluster,
+                new Handler(Looper.getMainLooper()));
+
+        // Sent right away, nothing to rate limit by yet.
+        manager.sendEvent(CarNavigationStatusManager.EVENT_TYPE_NEXT_DIRECTION_CHANGED,
+                new Bundle());
+        assertEquals(1, cluster.infoRequests);
+        assertEquals(1, cluster.events);
+
+        // Properties are fetched again, the first event after that is sent right away as well.
+        manager.sendEvent(CarNavigationStatusManager.EVENT_TYPE_NEXT_DIRECTION_CHANGED,
+                new Bundle());
+        assertEquals(2, cluster.infoRequests);
+        assertEquals(2, cluster.events);
+
+        // Rate limited now, properties are cached.
+        manager.sendEvent(CarNavigationStatusManager.EVENT_TYPE_NEXT_DIRECTION_CHANGED,
+                new Bundle());
+        assertEquals(2, cluster.infoRequests);
+        assertEquals(2, cluster.events);
+
+        manager.onCarDisconnected();
+    }
+}
@@ -704,7 +704,7 @@ public final class Car {
 //                manager = new CarPackageManager(binder, mContext);
 //                break;
             case CAR_NAVIGATION_SERVICE:
-                manager = new CarNavigationStatusManager(binder);
+                manager = new CarNavigationStatusManager(binder, mEventHandler);
                 break;
 //            case CABIN_SERVICE:
 //                manager = new CarCabinManager(binder, mContext, mEventHandler);
@@ -20,9 +20,11 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.RemoteException;
 import android.support.annotation.CallSuper;
 import android.support.annotation.GuardedBy;
@@ -35,6 +37,7 @@ import android.view.KeyEvent;
 import com.yanghaoyi.aosp.car.CarLibLog;
 import com.yanghaoyi.aosp.car.CarNotConnectedException;
 import com.yanghaoyi.aosp.car.navigation.CarNavigationInstrumentCluster;
+import com.yanghaoyi.aosp.car.navigation.CarNavigationState;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -69,6 +72,8 @@ public abstract class InstrumentClusterRenderingService extends Service {
     private final Object mLock = new Object();
     @GuardedBy("mLock")
     private IInstrumentClusterCallback mCallback;
+    @GuardedBy("mLock")
+    private HandlerThread mNavigationRendererThread;
 
     @Override
     @CallSuper
@@ -93,10 +98,80 @@ public abstract class InstrumentClusterRenderingService extends Service {
         return mRendererBinder;
     }
 
-    /** Returns {@link NavigationRenderer} or null if it's not supported. */
+    @Override
+    @CallSuper
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mLock) {
+            if (mNavigationRendererThread != null) {
+                mNavigationRendererThread.quitSafely();
+                mNavigationRendererThread = null;
+            }
+        }
+    }
+
+    /**
+     * Returns {@link NavigationRenderer} or null if it's not supported. Its methods are called on
+     * {@link #getNavigationRendererLooper()}.
+     */
     @MainThread
     protected abstract NavigationRenderer getNavigationRenderer();
 
+    /**
+     * Returns true if navigation events should be coalesced by event type, so only the latest
+     * pending event of every type is delivered to {@link NavigationRenderer#onEvent} when the
+     * navigation app sends them faster than the main thread handles them. Disabled by default.
+     */
+    protected boolean isNavigationEventCoalescingEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns true if {@link NavigationRenderer} methods should be called on a dedicated thread
+     * with display priority instead of the main thread, so navigation events don't compete with
+     * layout and input. The renderer then has to post UI changes to the main thread itself.
+     * Disabled by default.
+     */
+    protected boolean isNavigationRendererThreadEnabled() {
+        return false;
+    }
+
+    /**
+     * Returns the looper {@link NavigationRenderer} methods are called on: the dedicated renderer
+     * thread if {@link #isNavigationRendererThreadEnabled()}, otherwise the main looper.
+     * Subclasses may return the looper of a thread they manage themselves.
+     */
+    protected Looper getNavigationRendererLooper() {
+        if (!isNavigationRendererThreadEnabled()) {
+            return Looper.getMainLooper();
+        }
+        synchronized (mLock) {
+            if (mNavigationRendererThread == null) {
+                mNavigationRendererThread = new HandlerThread("NavigationRendererThread",
+                        Process.THREAD_PRIORITY_DISPLAY);
+                mNavigationRendererThread.start();
+            }
+            return mNavigationRendererThread.getLooper();
+        }
+    }
+
+    /**
+     * Drops navigation properties cached from {@link NavigationRenderer#getNavigationProperties()},
+     * to be called when they have changed, e.g. when the cluster display has been resized. May be
+     * called from any thread.
+     */
+    protected void invalidateNavigationProperties() {
+        NavigationRenderer renderer = null;
+        synchronized (mLock) {
+            if (mRendererBinder != null && mRendererBinder.mNavigationBinder != null) {
+                renderer = mRendererBinder.mNavigationBinder.mNavigationRenderer;
+            }
+        }
+        if (renderer instanceof ThreadSafeNavigationRenderer) {
+            ((ThreadSafeNavigationRenderer) renderer).invalidateNavigationProperties();
+        }
+    }
+
     /** Called when key event that was addressed to instrument cluster display has been received. */
     @MainThread
     protected void onKeyEvent(KeyEvent keyEvent) {
@@ -167,6 +242,13 @@ public abstract class InstrumentClusterRenderingService extends Service {
                 }
             }
             writer.println("navigation focus owner: " + owner);
+            synchronized (mLock) {
+                if (mRendererBinder.mNavigationBinder != null) {
+                    writer.println("thread-safe navigation renderer: "
+                            + mRendererBinder.mNavigationBinder.mNavigationRenderer);
+                }
+                writer.println("navigation renderer thread: " + mNavigationRendererThread);
+            }
         }
         IInstrumentClusterCallback cb;
         synchronized (mLock) {
@@ -228,8 +310,9 @@ public abstract class InstrumentClusterRenderingService extends Service {
 
         NavigationBinder(NavigationRenderer navigationRenderer) {
             mNavigationRenderer = ThreadSafeNavigationRenderer.createFor(
-                    Looper.getMainLooper(),
-                    navigationRenderer);
+                    getNavigationRendererLooper(),
+                    navigationRenderer,
+                    isNavigationEventCoalescingEnabled());
         }
 
         void setNavigationContextOwner(int uid, int pid) {
@@ -242,6 +325,12 @@ public abstract class InstrumentClusterRenderingService extends Service {
             mNavigationRenderer.onEvent(eventType, bundle);
         }
 
+        @Override
+        public void onNavigationStateChanged(CarNavigationState state) throws RemoteException {
+            assertContextOwnership();
+            mNavigationRenderer.onNavigationStateChanged(state);
+        }
+
         @Override
         public CarNavigationInstrumentCluster getInstrumentClusterInfo() throws RemoteException {
             return mNavigationRenderer.getNavigationProperties();
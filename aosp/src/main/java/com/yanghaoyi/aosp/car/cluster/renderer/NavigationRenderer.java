@@ -16,16 +16,22 @@
 package com.yanghaoyi.aosp.car.cluster.renderer;
 
 import android.os.Bundle;
-import android.support.annotation.UiThread;
+import android.support.annotation.AnyThread;
 
 import com.yanghaoyi.aosp.car.navigation.CarNavigationInstrumentCluster;
+import com.yanghaoyi.aosp.car.navigation.CarNavigationState;
+import com.yanghaoyi.aosp.car.navigation.CarNavigationStatusManager;
 
 /**
  * Contains methods specified for Navigation App renderer in instrument cluster.
  * 为导航应用提供渲染仪表的方法
+ * <p>Methods are called on the looper returned by
+ * {@link InstrumentClusterRenderingService#getNavigationRendererLooper()}, the main looper by
+ * default or a background looper if the service enables its renderer thread. Renderers that
+ * update views must post to the main thread themselves in that case.
  * @hide
  */
-@UiThread
+@AnyThread
 public abstract class NavigationRenderer {
     /**
      * Returns properties of instrument cluster for navigation.
@@ -38,4 +44,13 @@ public abstract class NavigationRenderer {
      * 在导航状态改变的时候调用
      */
     abstract public void onEvent(int eventType, Bundle bundle);
+
+    /**
+     * Called when the navigation app sends the next maneuver as {@link CarNavigationState}.
+     * Passes it on to {@link #onEvent} as bundle by default, renderers should override it to
+     * read the values directly.
+     */
+    public void onNavigationStateChanged(CarNavigationState state) {
+        onEvent(CarNavigationStatusManager.EVENT_TYPE_NEXT_DIRECTION_CHANGED, state.toBundle());
+    }
 }
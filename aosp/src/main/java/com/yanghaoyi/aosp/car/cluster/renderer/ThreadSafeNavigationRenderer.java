@@ -20,108 +20,275 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.SparseArray;
 
+import com.yanghaoyi.aosp.car.CarLibLog;
 import com.yanghaoyi.aosp.car.navigation.CarNavigationInstrumentCluster;
+import com.yanghaoyi.aosp.car.navigation.CarNavigationState;
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.CountDownLatch;
 
 /**
  * A wrapper over {@link NavigationRenderer} that runs all its methods in the context of provided
  * looper. It is guaranteed that all calls will be invoked in order they were called.
+ *
+ * <p>In coalescing mode only the latest pending event of every event type is delivered: an event
+ * arriving while an earlier one of the same type is still queued replaces its bundle and keeps its
+ * place in the queue, so at most one message per event type is pending on the looper.
+ *
+ * <p>Navigation properties are computed on the looper once and cached until
+ * {@link #invalidateNavigationProperties()} is called. Callers on other threads wait at most
+ * {@link #PROPERTIES_TIMEOUT_MS} for them and get the last known properties otherwise, so a busy
+ * looper never blocks binder threads for long.
  */
 // TODO(deanh): Does this class even need to exist?
 /* package */ class ThreadSafeNavigationRenderer extends NavigationRenderer {
 
     private final Handler mHandler;
     private final NavigationRenderer mRenderer;
+    @Nullable
+    private final EventCoalescer mCoalescer;
 
     private final static int MSG_EVENT = 1;
+    private final static int MSG_NAVIGATION_STATE = 2;
+
+    /** Key of navigation states in the coalescer, outside of the range of event types. */
+    private static final int NAVIGATION_STATE_KEY = Integer.MIN_VALUE;
+
+    private static final String TAG = CarLibLog.TAG_CLUSTER;
+
+    /** Maximum time other threads wait for the looper to compute navigation properties. */
+    private static final long PROPERTIES_TIMEOUT_MS = 500;
+
+    private final Object mPropertiesLock = new Object();
+    /** Last computed properties, returned as fallback when waiting for new ones times out. */
+    @GuardedBy("mPropertiesLock")
+    private CarNavigationInstrumentCluster mProperties;
+    @GuardedBy("mPropertiesLock")
+    private boolean mPropertiesValid;
+    /** Incremented on invalidation, so properties computed meanwhile are not considered valid. */
+    @GuardedBy("mPropertiesLock")
+    private int mPropertiesGeneration;
+    @GuardedBy("mPropertiesLock")
+    private boolean mPropertiesRequested;
+    @GuardedBy("mPropertiesLock")
+    private long mPropertiesTimeouts;
+
+    private final Runnable mUpdatePropertiesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateNavigationProperties();
+        }
+    };
 
     /** Creates thread-safe {@link NavigationRenderer}. Returns null if renderer == null */
     @Nullable
     static NavigationRenderer createFor(Looper looper, NavigationRenderer renderer) {
-        return renderer == null ? null : new ThreadSafeNavigationRenderer(looper, renderer);
+        return createFor(looper, renderer, false /* coalesceEvents */);
+    }
+
+    /**
+     * Creates thread-safe {@link NavigationRenderer}, optionally coalescing events by type.
+     * Returns null if renderer == null
+     */
+    @Nullable
+    static NavigationRenderer createFor(Looper looper, NavigationRenderer renderer,
+            boolean coalesceEvents) {
+        return renderer == null
+                ? null : new ThreadSafeNavigationRenderer(looper, renderer, coalesceEvents);
     }
 
-    private ThreadSafeNavigationRenderer(Looper looper, NavigationRenderer renderer) {
+    private ThreadSafeNavigationRenderer(Looper looper, NavigationRenderer renderer,
+            boolean coalesceEvents) {
         mRenderer = renderer;
-        mHandler = new NavigationRendererHandler(looper, renderer);
+        mCoalescer = coalesceEvents ? new EventCoalescer() : null;
+        mHandler = new NavigationRendererHandler(looper, renderer, mCoalescer);
+        // Computed ahead, so the first call from a binder thread usually doesn't wait.
+        synchronized (mPropertiesLock) {
+            requestNavigationPropertiesLocked();
+        }
     }
 
     @Override
     public CarNavigationInstrumentCluster getNavigationProperties() {
         if (mHandler.getLooper() == Looper.myLooper()) {
-            return mRenderer.getNavigationProperties();
-        } else {
-            return runAndWaitResult(mHandler,
-                    new RunnableWithResult<CarNavigationInstrumentCluster>() {
-                        @Override
-                        protected CarNavigationInstrumentCluster createResult() {
-                            return mRenderer.getNavigationProperties();
-                        }
-                    });
+            synchronized (mPropertiesLock) {
+                if (mPropertiesValid) return mProperties;
+            }
+            return updateNavigationProperties();
+        }
+
+        synchronized (mPropertiesLock) {
+            if (mPropertiesValid) return mProperties;
+
+            requestNavigationPropertiesLocked();
+            long deadline = SystemClock.uptimeMillis() + PROPERTIES_TIMEOUT_MS;
+            long remaining = PROPERTIES_TIMEOUT_MS;
+            while (!mPropertiesValid && remaining > 0) {
+                try {
+                    mPropertiesLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+            if (!mPropertiesValid) {
+                mPropertiesTimeouts++;
+                Log.w(TAG, "Navigation properties not computed within " + PROPERTIES_TIMEOUT_MS
+                        + "ms, returns last known: " + mProperties);
+            }
+            return mProperties;
         }
     }
 
+    /**
+     * Drops cached navigation properties and computes them again on the looper, to be called when
+     * the properties returned by the renderer have changed. May be called from any thread.
+     */
+    void invalidateNavigationProperties() {
+        synchronized (mPropertiesLock) {
+            mPropertiesGeneration++;
+            mPropertiesValid = false;
+            requestNavigationPropertiesLocked();
+        }
+    }
+
+    @GuardedBy("mPropertiesLock")
+    private void requestNavigationPropertiesLocked() {
+        if (!mPropertiesRequested) {
+            mPropertiesRequested = true;
+            mHandler.post(mUpdatePropertiesRunnable);
+        }
+    }
+
+    /** Computes navigation properties on the looper and wakes up waiting threads. */
+    private CarNavigationInstrumentCluster updateNavigationProperties() {
+        int generation;
+        synchronized (mPropertiesLock) {
+            mPropertiesRequested = false;
+            generation = mPropertiesGeneration;
+        }
+        CarNavigationInstrumentCluster properties = mRenderer.getNavigationProperties();
+        synchronized (mPropertiesLock) {
+            mProperties = properties;
+            // Invalidated meanwhile, the update requested by invalidation is still pending.
+            mPropertiesValid = generation == mPropertiesGeneration;
+            mPropertiesLock.notifyAll();
+        }
+        return properties;
+    }
+
     @Override
     public void onEvent(int eventType, Bundle bundle) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_EVENT, eventType, 0, bundle));
+        if (mCoalescer == null) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_EVENT, eventType, 0, bundle));
+        } else if (mCoalescer.offer(eventType, bundle)) {
+            // Bundle is taken from the coalescer when the message is handled.
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_EVENT, eventType, 0));
+        }
     }
 
-    private static class NavigationRendererHandler extends RendererHandler<NavigationRenderer> {
-
-        NavigationRendererHandler(Looper looper, NavigationRenderer renderer) {
-            super(looper, renderer);
+    @Override
+    public void onNavigationStateChanged(CarNavigationState state) {
+        if (mCoalescer == null) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_NAVIGATION_STATE, state));
+        } else if (mCoalescer.offer(NAVIGATION_STATE_KEY, state)) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_NAVIGATION_STATE));
         }
+    }
 
-        @Override
-        public void handleMessage(Message msg, NavigationRenderer renderer) {
-            switch (msg.what) {
-                case MSG_EVENT:
-                    Bundle bundle = (Bundle) msg.obj;
-                    renderer.onEvent(msg.arg1, bundle);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Msg: " + msg.what);
-            }
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "renderer: " + mRenderer
+                + ", coalescer: " + mCoalescer
+                + ", properties: " + getPropertiesSummary()
+                + "}";
+    }
+
+    private String getPropertiesSummary() {
+        synchronized (mPropertiesLock) {
+            return "{valid: " + mPropertiesValid
+                    + ", value: " + mProperties
+                    + ", timeouts: " + mPropertiesTimeouts
+                    + "}";
         }
     }
 
-    private static <E> E runAndWaitResult(Handler handler, final RunnableWithResult<E> runnable) {
-        final CountDownLatch latch = new CountDownLatch(1);
+    /** Keeps the latest pending bundle of every event type and the latest navigation state. */
+    private static class EventCoalescer {
+        private final Object mLock = new Object();
+        @GuardedBy("mLock")
+        private final SparseArray<Object> mPendingEvents = new SparseArray<>();
+        @GuardedBy("mLock")
+        private long mEventsReceived;
+        @GuardedBy("mLock")
+        private long mEventsCoalesced;
 
-        Runnable wrappedRunnable = new Runnable() {
-            @Override
-            public void run() {
-                runnable.run();
-                latch.countDown();
+        /** Returns true if no event of this type is pending and a message has to be sent. */
+        boolean offer(int eventType, Object payload) {
+            synchronized (mLock) {
+                mEventsReceived++;
+                boolean pending = mPendingEvents.indexOfKey(eventType) >= 0;
+                if (pending) {
+                    mEventsCoalesced++;
+                }
+                mPendingEvents.put(eventType, payload);
+                return !pending;
             }
-        };
+        }
 
-        handler.post(wrappedRunnable);
+        /** Removes and returns the latest pending payload of the event type. */
+        Object take(int eventType) {
+            synchronized (mLock) {
+                Object payload = mPendingEvents.get(eventType);
+                mPendingEvents.remove(eventType);
+                return payload;
+            }
+        }
 
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        @Override
+        public String toString() {
+            synchronized (mLock) {
+                return "{eventsReceived: " + mEventsReceived
+                        + ", eventsCoalesced: " + mEventsCoalesced
+                        + ", pendingEvents: " + mPendingEvents.size()
+                        + "}";
+            }
         }
-        return runnable.getResult();
     }
 
-    private static abstract class RunnableWithResult<T> implements Runnable {
-        private volatile T result;
-
-        protected abstract T createResult();
+    private static class NavigationRendererHandler extends RendererHandler<NavigationRenderer> {
+        @Nullable
+        private final EventCoalescer mCoalescer;
 
-        @Override
-        public void run() {
-            result = createResult();
+        NavigationRendererHandler(Looper looper, NavigationRenderer renderer,
+                @Nullable EventCoalescer coalescer) {
+            super(looper, renderer);
+            mCoalescer = coalescer;
         }
 
-        public T getResult() {
-            return result;
+        @Override
+        public void handleMessage(Message msg, NavigationRenderer renderer) {
+            switch (msg.what) {
+                case MSG_EVENT:
+                    Bundle bundle = (Bundle) (mCoalescer != null
+                            ? mCoalescer.take(msg.arg1) : msg.obj);
+                    renderer.onEvent(msg.arg1, bundle);
+                    break;
+                case MSG_NAVIGATION_STATE:
+                    CarNavigationState state = (CarNavigationState) (mCoalescer != null
+                            ? mCoalescer.take(NAVIGATION_STATE_KEY) : msg.obj);
+                    renderer.onNavigationStateChanged(state);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Msg: " + msg.what);
+            }
         }
     }
 
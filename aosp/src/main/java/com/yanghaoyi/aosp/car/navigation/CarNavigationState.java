@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yanghaoyi.aosp.car.navigation;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Next maneuver and route progress sent from the navigation app to the instrument cluster.
+ * 导航发送给仪表的转向与路线信息
+ *
+ * <p>Typed alternative to the event {@link Bundle}, all values are primitives written to the
+ * parcel in a fixed order, so no keys are marshalled and nothing is unparcelled by reflection.
+ */
+public final class CarNavigationState implements Parcelable {
+
+    /** Maneuver values, same as turn events of the car support library. */
+    public static final int MANEUVER_UNKNOWN = 0;
+    public static final int MANEUVER_DEPART = 1;
+    public static final int MANEUVER_NAME_CHANGE = 2;
+    public static final int MANEUVER_SLIGHT_TURN = 3;
+    public static final int MANEUVER_TURN = 4;
+    public static final int MANEUVER_SHARP_TURN = 5;
+    public static final int MANEUVER_U_TURN = 6;
+    public static final int MANEUVER_ON_RAMP = 7;
+    public static final int MANEUVER_OFF_RAMP = 8;
+    public static final int MANEUVER_FORK = 9;
+    public static final int MANEUVER_MERGE = 10;
+    public static final int MANEUVER_ROUNDABOUT_ENTER = 11;
+    public static final int MANEUVER_ROUNDABOUT_EXIT = 12;
+    public static final int MANEUVER_ROUNDABOUT_ENTER_AND_EXIT = 13;
+    public static final int MANEUVER_STRAIGHT = 14;
+    public static final int MANEUVER_FERRY_BOAT = 16;
+    public static final int MANEUVER_FERRY_TRAIN = 17;
+    public static final int MANEUVER_DESTINATION = 19;
+
+    /** @hide */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+        MANEUVER_UNKNOWN,
+        MANEUVER_DEPART,
+        MANEUVER_NAME_CHANGE,
+        MANEUVER_SLIGHT_TURN,
+        MANEUVER_TURN,
+        MANEUVER_SHARP_TURN,
+        MANEUVER_U_TURN,
+        MANEUVER_ON_RAMP,
+        MANEUVER_OFF_RAMP,
+        MANEUVER_FORK,
+        MANEUVER_MERGE,
+        MANEUVER_ROUNDABOUT_ENTER,
+        MANEUVER_ROUNDABOUT_EXIT,
+        MANEUVER_ROUNDABOUT_ENTER_AND_EXIT,
+        MANEUVER_STRAIGHT,
+        MANEUVER_FERRY_BOAT,
+        MANEUVER_FERRY_TRAIN,
+        MANEUVER_DESTINATION
+    })
+    public @interface Maneuver {}
+
+    public static final int TURN_SIDE_LEFT = 1;
+    public static final int TURN_SIDE_RIGHT = 2;
+    public static final int TURN_SIDE_UNSPECIFIED = 3;
+
+    /** @hide */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+        TURN_SIDE_LEFT,
+        TURN_SIDE_RIGHT,
+        TURN_SIDE_UNSPECIFIED
+    })
+    public @interface TurnSide {}
+
+    /** Maximum number of lanes, one bit of {@link #getRecommendedLanes()} per lane. */
+    public static final int MAX_LANE_COUNT = 32;
+
+    // Keys of toBundle().
+    private static final String KEY_MANEUVER = "maneuver";
+    private static final String KEY_TURN_SIDE = "turnSide";
+    private static final String KEY_DISTANCE_METERS = "distanceMeters";
+    private static final String KEY_TIME_TO_MANEUVER_SECONDS = "timeToManeuverSeconds";
+    private static final String KEY_REMAINING_DISTANCE_METERS = "remainingDistanceMeters";
+    private static final String KEY_REMAINING_TIME_SECONDS = "remainingTimeSeconds";
+    private static final String KEY_LANE_COUNT = "laneCount";
+    private static final String KEY_RECOMMENDED_LANES = "recommendedLanes";
+
+    //下一个转向类型
+    @Maneuver
+    private final int mManeuver;
+    //转向方向
+    @TurnSide
+    private final int mTurnSide;
+    //到下一个转向的距离（米）
+    private final int mDistanceMeters;
+    //到下一个转向的时间（秒）
+    private final int mTimeToManeuverSeconds;
+    //到目的地的剩余距离（米）
+    private final int mRemainingDistanceMeters;
+    //到目的地的剩余时间（秒）
+    private final int mRemainingTimeSeconds;
+    //车道数
+    private final int mLaneCount;
+    //推荐车道，从左数第n个车道对应第n位
+    private final int mRecommendedLanes;
+
+    public static final Creator<CarNavigationState> CREATOR = new Creator<CarNavigationState>() {
+        public CarNavigationState createFromParcel(Parcel in) {
+            return new CarNavigationState(in);
+        }
+
+        public CarNavigationState[] newArray(int size) {
+            return new CarNavigationState[size];
+        }
+    };
+
+    private CarNavigationState(Builder builder) {
+        mManeuver = builder.mManeuver;
+        mTurnSide = builder.mTurnSide;
+        mDistanceMeters = builder.mDistanceMeters;
+        mTimeToManeuverSeconds = builder.mTimeToManeuverSeconds;
+        mRemainingDistanceMeters = builder.mRemainingDistanceMeters;
+        mRemainingTimeSeconds = builder.mRemainingTimeSeconds;
+        mLaneCount = builder.mLaneCount;
+        mRecommendedLanes = builder.mRecommendedLanes;
+    }
+
+    private CarNavigationState(Parcel in) {
+        mManeuver = in.readInt();
+        mTurnSide = in.readInt();
+        mDistanceMeters = in.readInt();
+        mTimeToManeuverSeconds = in.readInt();
+        mRemainingDistanceMeters = in.readInt();
+        mRemainingTimeSeconds = in.readInt();
+        mLaneCount = in.readInt();
+        mRecommendedLanes = in.readInt();
+    }
+
+    /** Next maneuver, one of {@code MANEUVER_*}. */
+    @Maneuver
+    public int getManeuver() {
+        return mManeuver;
+    }
+
+    /** Side of the next maneuver, one of {@code TURN_SIDE_*}. */
+    @TurnSide
+    public int getTurnSide() {
+        return mTurnSide;
+    }
+
+    /** Distance to the next maneuver in meters. */
+    public int getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    /** Time to the next maneuver in seconds. */
+    public int getTimeToManeuverSeconds() {
+        return mTimeToManeuverSeconds;
+    }
+
+    /** Distance to the destination in meters. */
+    public int getRemainingDistanceMeters() {
+        return mRemainingDistanceMeters;
+    }
+
+    /** Time to the destination in seconds. */
+    public int getRemainingTimeSeconds() {
+        return mRemainingTimeSeconds;
+    }
+
+    /** Number of lanes at the next maneuver, 0 if unknown. */
+    public int getLaneCount() {
+        return mLaneCount;
+    }
+
+    /** Bit mask of lanes recommended for the next maneuver, bit 0 is the leftmost lane. */
+    public int getRecommendedLanes() {
+        return mRecommendedLanes;
+    }
+
+    /**
+     * Returns the state as event bundle, for renderers that only handle
+     * {@link com.yanghaoyi.aosp.car.cluster.renderer.NavigationRenderer#onEvent}.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_MANEUVER, mManeuver);
+        bundle.putInt(KEY_TURN_SIDE, mTurnSide);
+        bundle.putInt(KEY_DISTANCE_METERS, mDistanceMeters);
+        bundle.putInt(KEY_TIME_TO_MANEUVER_SECONDS, mTimeToManeuverSeconds);
+        bundle.putInt(KEY_REMAINING_DISTANCE_METERS, mRemainingDistanceMeters);
+        bundle.putInt(KEY_REMAINING_TIME_SECONDS, mRemainingTimeSeconds);
+        bundle.putInt(KEY_LANE_COUNT, mLaneCount);
+        bundle.putInt(KEY_RECOMMENDED_LANES, mRecommendedLanes);
+        return bundle;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mManeuver);
+        dest.writeInt(mTurnSide);
+        dest.writeInt(mDistanceMeters);
+        dest.writeInt(mTimeToManeuverSeconds);
+        dest.writeInt(mRemainingDistanceMeters);
+        dest.writeInt(mRemainingTimeSeconds);
+        dest.writeInt(mLaneCount);
+        dest.writeInt(mRecommendedLanes);
+    }
+
+    /** Converts to string for debug purpose */
+    @Override
+    public String toString() {
+        return CarNavigationState.class.getSimpleName() + "{ " +
+                "maneuver: " + mManeuver + ", " +
+                "turnSide: " + mTurnSide + ", " +
+                "distanceMeters: " + mDistanceMeters + ", " +
+                "timeToManeuverSeconds: " + mTimeToManeuverSeconds + ", " +
+                "remainingDistanceMeters: " + mRemainingDistanceMeters + ", " +
+                "remainingTimeSeconds: " + mRemainingTimeSeconds + ", " +
+                "laneCount: " + mLaneCount + ", " +
+                "recommendedLanes: " + Integer.toBinaryString(mRecommendedLanes) + " }";
+    }
+
+    /** Builder of {@link CarNavigationState}, values not set are 0 or unspecified. */
+    public static final class Builder {
+        private int mManeuver = MANEUVER_UNKNOWN;
+        private int mTurnSide = TURN_SIDE_UNSPECIFIED;
+        private int mDistanceMeters;
+        private int mTimeToManeuverSeconds;
+        private int mRemainingDistanceMeters;
+        private int mRemainingTimeSeconds;
+        private int mLaneCount;
+        private int mRecommendedLanes;
+
+        public Builder setManeuver(@Maneuver int maneuver, @TurnSide int turnSide) {
+            mManeuver = maneuver;
+            mTurnSide = turnSide;
+            return this;
+        }
+
+        public Builder setDistanceToManeuver(int distanceMeters, int timeSeconds) {
+            mDistanceMeters = distanceMeters;
+            mTimeToManeuverSeconds = timeSeconds;
+            return this;
+        }
+
+        public Builder setRemaining(int distanceMeters, int timeSeconds) {
+            mRemainingDistanceMeters = distanceMeters;
+            mRemainingTimeSeconds = timeSeconds;
+            return this;
+        }
+
+        /**
+         * @param laneCount number of lanes, at most {@link #MAX_LANE_COUNT}
+         * @param recommendedLanes bit mask of recommended lanes, bit 0 is the leftmost lane
+         */
+        public Builder setLanes(int laneCount, int recommendedLanes) {
+            if (laneCount < 0 || laneCount > MAX_LANE_COUNT) {
+                throw new IllegalArgumentException("Invalid lane count: " + laneCount);
+            }
+            mLaneCount = laneCount;
+            mRecommendedLanes = recommendedLanes;
+            return this;
+        }
+
+        public CarNavigationState build() {
+            return new CarNavigationState(this);
+        }
+    }
+}
@@ -16,9 +16,13 @@
 package com.yanghaoyi.aosp.car.navigation;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.yanghaoyi.aosp.car.CarApiUtil;
 import com.yanghaoyi.aosp.car.CarLibLog;
@@ -29,18 +33,40 @@ import com.yanghaoyi.aosp.car.cluster.renderer.IInstrumentClusterNavigation;
 
 /**
  * API for providing navigation status for instrument cluster.
+ *
+ * <p>Events are rate limited to {@link CarNavigationInstrumentCluster#getMinIntervalMillis()} of
+ * the cluster, which is fetched with the first event and again with later events as long as the
+ * cluster doesn't return it, e.g. because its renderer is busy. Events of the same type sent within
+ * the interval are not passed to the cluster right away, only the latest one is sent once the
+ * interval has passed, see {@link #flush()}.
+ *
+ * <p>{@link #sendNavigationState} is the typed alternative to sending
+ * {@link #EVENT_TYPE_NEXT_DIRECTION_CHANGED} events and is rate limited together with them.
  */
 public final class CarNavigationStatusManager implements CarManagerBase {
     private static final String TAG = CarLibLog.TAG_NAV;
 
+    /** Event type of next maneuver updates, sent as bundle or {@link CarNavigationState}. */
+    public static final int EVENT_TYPE_NEXT_DIRECTION_CHANGED = 1;
+
     private final IInstrumentClusterNavigation mService;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    /** Minimum interval between events of the same type, -1 if not fetched yet. */
+    @GuardedBy("mLock")
+    private int mMinIntervalMillis = -1;
+    @GuardedBy("mLock")
+    private final SparseArray<EventThrottle> mThrottles = new SparseArray<>();
 
     /**
      * Only for CarServiceLoader
+     * @param handler handler delayed events are sent on
      * @hide
      */
-    public CarNavigationStatusManager(IBinder service) {
+    public CarNavigationStatusManager(IBinder service, Handler handler) {
         mService = IInstrumentClusterNavigation.Stub.asInterface(service);
+        mHandler = handler;
     }
 
     /**
@@ -49,13 +75,109 @@ public final class CarNavigationStatusManager implements CarManagerBase {
      * <p>The event type and bundle can be populated by
      * {@link android.support.car.navigation.CarNavigationStatusEvent}.
      *
+     * <p>If an event of the same type has been sent less than the minimum interval of the cluster
+     * ago, the event is sent later and replaces any other event of this type still waiting.
+     *
      * @param eventType event type
      * @param bundle object that holds data about the event
      * @throws CarNotConnectedException if the connection to the car service has been lost.
      */
     public void sendEvent(int eventType, Bundle bundle) throws CarNotConnectedException {
+        send(eventType, bundle);
+    }
+
+    /**
+     * Sends the next maneuver and route progress to instrument cluster. Cheaper to marshal than
+     * the equivalent bundle sent with {@link #sendEvent}, rate limited together with
+     * {@link #EVENT_TYPE_NEXT_DIRECTION_CHANGED} events.
+     *
+     * @throws IllegalArgumentException if {@code state} is null
+     * @throws CarNotConnectedException if the connection to the car service has been lost.
+     */
+    public void sendNavigationState(CarNavigationState state) throws CarNotConnectedException {
+        if (state == null) {
+            throw new IllegalArgumentException("state must not be null");
+        }
+        send(EVENT_TYPE_NEXT_DIRECTION_CHANGED, state);
+    }
+
+    /** @param payload {@link Bundle} or {@link CarNavigationState} */
+    private void send(int eventType, Object payload) throws CarNotConnectedException {
+        int minIntervalMillis = getMinIntervalMillis();
+        if (minIntervalMillis <= 0) {
+            sendNow(eventType, payload);
+            return;
+        }
+
+        synchronized (mLock) {
+            EventThrottle throttle = mThrottles.get(eventType);
+            if (throttle == null) {
+                throttle = new EventThrottle(eventType);
+                mThrottles.put(eventType, throttle);
+            }
+            long now = SystemClock.uptimeMillis();
+            long sendAt = throttle.mLastSentAt + minIntervalMillis;
+            if (!throttle.mHasPending && now >= sendAt) {
+                throttle.mLastSentAt = now;
+            } else {
+                if (!throttle.mHasPending) {
+                    mHandler.postAtTime(throttle, sendAt);
+                }
+                // Latest value wins, earlier pending event is dropped.
+                throttle.mPending = payload;
+                throttle.mHasPending = true;
+                return;
+            }
+        }
+        sendNow(eventType, payload);
+    }
+
+    /**
+     * Sends all events held back by rate limiting right away, e.g. before the navigation app
+     * abandons navigation focus.
+     *
+     * @throws CarNotConnectedException if the connection to the car service has been lost.
+     */
+    public void flush() throws CarNotConnectedException {
+        SparseArray<Object> pending = new SparseArray<>();
+        synchronized (mLock) {
+            long now = SystemClock.uptimeMillis();
+            for (int i = 0; i < mThrottles.size(); i++) {
+                EventThrottle throttle = mThrottles.valueAt(i);
+                if (!throttle.mHasPending) continue;
+
+                mHandler.removeCallbacks(throttle);
+                pending.put(throttle.mEventType, throttle.mPending);
+                throttle.mPending = null;
+                throttle.mHasPending = false;
+                throttle.mLastSentAt = now;
+            }
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            sendNow(pending.keyAt(i), pending.valueAt(i));
+        }
+    }
+
+    /** @hide */
+    @Override
+    public void onCarDisconnected() {
+        synchronized (mLock) {
+            for (int i = 0; i < mThrottles.size(); i++) {
+                mHandler.removeCallbacks(mThrottles.valueAt(i));
+            }
+            mThrottles.clear();
+            // Fetched again from the cluster the car service is connected to next.
+            mMinIntervalMillis = -1;
+        }
+    }
+
+    private void sendNow(int eventType, Object payload) throws CarNotConnectedException {
         try {
-            mService.onEvent(eventType, bundle);
+            if (payload instanceof CarNavigationState) {
+                mService.onNavigationStateChanged((CarNavigationState) payload);
+            } else {
+                mService.onEvent(eventType, (Bundle) payload);
+            }
         } catch (IllegalStateException e) {
             CarApiUtil.checkCarNotConnectedExceptionFromCarService(e);
         } catch (RemoteException e) {
@@ -63,9 +185,56 @@ public final class CarNavigationStatusManager implements CarManagerBase {
         }
     }
 
-    /** @hide */
-    @Override
-    public void onCarDisconnected() {}
+    /**
+     * Returns minimum interval of the cluster, fetched with the first call. Returns 0 without
+     * caching it if the cluster didn't return its properties, so the next call fetches again.
+     */
+    private int getMinIntervalMillis() throws CarNotConnectedException {
+        synchronized (mLock) {
+            if (mMinIntervalMillis >= 0) return mMinIntervalMillis;
+        }
+        CarNavigationInstrumentCluster clusterInfo = getInstrumentClusterInfo();
+        if (clusterInfo == null) return 0;
+
+        int minIntervalMillis = Math.max(0, clusterInfo.getMinIntervalMillis());
+        synchronized (mLock) {
+            mMinIntervalMillis = minIntervalMillis;
+        }
+        return minIntervalMillis;
+    }
+
+    /** Sends the pending event of one type once the minimum interval has passed. */
+    private class EventThrottle implements Runnable {
+        final int mEventType;
+        // Guarded by mLock of the manager.
+        long mLastSentAt;
+        /** {@link Bundle}, possibly null, or {@link CarNavigationState} waiting to be sent. */
+        Object mPending;
+        boolean mHasPending;
+
+        EventThrottle(int eventType) {
+            mEventType = eventType;
+            // Allows the first event to be sent right away.
+            mLastSentAt = Long.MIN_VALUE / 2;
+        }
+
+        @Override
+        public void run() {
+            Object payload;
+            synchronized (mLock) {
+                if (!mHasPending) return;
+                payload = mPending;
+                mPending = null;
+                mHasPending = false;
+                mLastSentAt = SystemClock.uptimeMillis();
+            }
+            try {
+                sendNow(mEventType, payload);
+            } catch (CarNotConnectedException e) {
+                Log.w(TAG, "Failed to send delayed navigation event " + mEventType, e);
+            }
+        }
+    }
 
     /** Returns navigation features of instrument cluster */
     public CarNavigationInstrumentCluster getInstrumentClusterInfo()
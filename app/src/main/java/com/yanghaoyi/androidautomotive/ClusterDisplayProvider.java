@@ -19,111 +19,213 @@ package com.yanghaoyi.androidautomotive;
 import android.content.Context;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.DisplayManager.DisplayListener;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
-import android.text.TextUtils;
 import android.util.Log;
-import android.view.Display;
+
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * This class provides a display for instrument cluster renderer.
+ * This class provides displays for instrument cluster renderer.
  * <p>
- * By default it will try to provide physical secondary display if it is connected, if secondary
- * display is not connected during creation of this class then it will start networked virtual
- * display and listens for incoming connections.
+ * Displays are discovered and classified by {@link ClusterDisplayRegistry}, the listener is
+ * notified about every cluster display on the looper of the thread that created the provider,
+ * or the main looper if it has none. Several of them may be active at the same time. If no
+ * physical cluster display is connected when the registry has reported the initial displays then
+ * it will start a networked virtual display for every port in {@code NETWORKED_DISPLAY_PORTS} and
+ * listens for incoming connections.
  *
  * @see {@link NetworkedVirtualDisplay}
  */
 public class ClusterDisplayProvider {
     private static final String TAG = ClusterDisplayProvider.class.getSimpleName();
 
+    // Maximum and default size of the networked display, receivers may ask for a smaller one.
     private static final int NETWORKED_DISPLAY_WIDTH = 1280;
     private static final int NETWORKED_DISPLAY_HEIGHT = 720;
     private static final int NETWORKED_DISPLAY_DPI = 320;
+    private static final int NETWORKED_DISPLAY_WIRE_FORMAT = StreamProtocol.WIRE_FORMAT_RAW;
+    // AVC High needs receivers able to decode it, AVC Baseline is used otherwise.
+    private static final boolean NETWORKED_DISPLAY_AVC_HIGH = false;
+    // One networked display is started per port.
+    private static final int[] NETWORKED_DISPLAY_PORTS = { NetworkedVirtualDisplay.DEFAULT_PORT };
 
-    private final DisplayListener mListener;
-    private final DisplayManager mDisplayManager;
-
-    private NetworkedVirtualDisplay mNetworkedVirtualDisplay;
-    private int mClusterDisplayId = -1;
+    private static final int EVENT_ADDED = 0;
+    private static final int EVENT_REMOVED = 1;
+    private static final int EVENT_CHANGED = 2;
 
-    ClusterDisplayProvider(Context context, DisplayListener clusterDisplayListener) {
+    private final DisplayListener mListener;
+    // Delivers listener callbacks, posted from the registry thread.
+    private final Handler mListenerHandler;
+    private final ClusterDisplayRegistry mRegistry;
+    private final List<NetworkedVirtualDisplay> mNetworkedVirtualDisplays =
+            new CopyOnWriteArrayList<>();
+    // Networked displays by display name, accessed only from the registry thread.
+    private final Map<String, NetworkedVirtualDisplay> mNetworkedVirtualDisplaysByName =
+            new HashMap<>();
+    // Guards starting networked displays on the registry thread against release().
+    private final Object mLock = new Object();
+    // Written under mLock on the listener looper.
+    private volatile boolean mReleased;
+
+    ClusterDisplayProvider(final Context context, DisplayListener clusterDisplayListener) {
         mListener = clusterDisplayListener;
-        mDisplayManager = context.getSystemService(DisplayManager.class);
-
-        Display clusterDisplay = getInstrumentClusterDisplay(mDisplayManager);
-        if (clusterDisplay != null) {
-            mClusterDisplayId = clusterDisplay.getDisplayId();
-            clusterDisplayListener.onDisplayAdded(clusterDisplay.getDisplayId());
-            trackClusterDisplay(null /* no need to track display by name */);
-        } else {
-            Log.i(TAG, "No physical cluster display found, starting network display");
-            setupNetworkDisplay(context);
-        }
-    }
+        Looper looper = Looper.myLooper();
+        mListenerHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        mRegistry = new ClusterDisplayRegistry(context.getSystemService(DisplayManager.class),
+                new ClusterDisplayRegistry.Listener() {
+                    @Override
+                    public void onDisplayAdded(ClusterDisplayRegistry.DisplayInfo display) {
+                        if (display.role != ClusterDisplayRegistry.ROLE_CLUSTER) return;
+
+                        NetworkedVirtualDisplay networkedVirtualDisplay =
+                                mNetworkedVirtualDisplaysByName.get(display.name);
+                        if (networkedVirtualDisplay != null) {
+                            networkedVirtualDisplay.onVirtualDisplayReady(display.displayId);
+                        }
+                        postToListener(EVENT_ADDED, display.displayId);
+                    }
 
-    private void setupNetworkDisplay(Context context) {
-        mNetworkedVirtualDisplay = new NetworkedVirtualDisplay(context,
-                NETWORKED_DISPLAY_WIDTH, NETWORKED_DISPLAY_HEIGHT, NETWORKED_DISPLAY_DPI);
-        String displayName = mNetworkedVirtualDisplay.start();
-        trackClusterDisplay(displayName);
-    }
+                    @Override
+                    public void onDisplayRemoved(ClusterDisplayRegistry.DisplayInfo display) {
+                        if (display.role == ClusterDisplayRegistry.ROLE_CLUSTER) {
+                            postToListener(EVENT_REMOVED, display.displayId);
+                        }
+                    }
 
-    private void trackClusterDisplay(@Nullable final String displayName) {
-        mDisplayManager.registerDisplayListener(new DisplayListener() {
-            @Override
-            public void onDisplayAdded(int displayId) {
-                boolean clusterDisplayAdded = false;
-
-                if (displayName == null && mClusterDisplayId == -1) {
-                    mClusterDisplayId = displayId;
-                    clusterDisplayAdded = true;
-                } else {
-                    Display display = mDisplayManager.getDisplay(displayId);
-                    if (display != null && TextUtils.equals(display.getName(), displayName)) {
-                        mClusterDisplayId = displayId;
-                        clusterDisplayAdded = true;
+                    @Override
+                    public void onDisplayChanged(ClusterDisplayRegistry.DisplayInfo display) {
+                        if (display.role == ClusterDisplayRegistry.ROLE_CLUSTER) {
+                            postToListener(EVENT_CHANGED, display.displayId);
+                        }
                     }
-                }
+                });
+        mRegistry.start();
+
+        mRegistry.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (!getClusterDisplayIds().isEmpty()) return;
+
+                Log.i(TAG, "No physical cluster display found, starting network displays");
+                synchronized (mLock) {
+                    if (mReleased) return;
 
-                if (clusterDisplayAdded) {
-                    mListener.onDisplayAdded(displayId);
+                    for (int port : NETWORKED_DISPLAY_PORTS) {
+                        setupNetworkDisplay(context, port);
+                    }
                 }
             }
+        });
+    }
 
-            @Override
-            public void onDisplayRemoved(int displayId) {
-                if (displayId == mClusterDisplayId) {
-                    mClusterDisplayId = -1;
-                    mListener.onDisplayRemoved(displayId);
-                }
+    /**
+     * Stops listening for display changes and releases networked displays, listener is not
+     * called anymore afterwards. Must be called on the listener looper.
+     */
+    void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            // Torn down on their own network threads.
+            for (NetworkedVirtualDisplay networkedVirtualDisplay : mNetworkedVirtualDisplays) {
+                networkedVirtualDisplay.release();
             }
+            mNetworkedVirtualDisplays.clear();
+        }
+        mListenerHandler.removeCallbacksAndMessages(null);
+        mRegistry.stop();
+    }
 
+    /** Calls the listener on the listener looper, unless the provider has been released. */
+    private void postToListener(final int event, final int displayId) {
+        mListenerHandler.post(new Runnable() {
             @Override
-            public void onDisplayChanged(int displayId) {
-                if (displayId == mClusterDisplayId) {
-                    mListener.onDisplayChanged(displayId);
+            public void run() {
+                if (mReleased) return;
+
+                switch (event) {
+                    case EVENT_ADDED:
+                        mListener.onDisplayAdded(displayId);
+                        break;
+                    case EVENT_REMOVED:
+                        mListener.onDisplayRemoved(displayId);
+                        break;
+                    case EVENT_CHANGED:
+                        mListener.onDisplayChanged(displayId);
+                        break;
                 }
             }
+        });
+    }
+
+    private void setupNetworkDisplay(Context context, int port) {
+        NetworkedVirtualDisplay networkedVirtualDisplay = new NetworkedVirtualDisplay(context,
+                NETWORKED_DISPLAY_WIDTH, NETWORKED_DISPLAY_HEIGHT, NETWORKED_DISPLAY_DPI);
+        networkedVirtualDisplay.setPort(port);
+        networkedVirtualDisplay.setWireFormat(NETWORKED_DISPLAY_WIRE_FORMAT);
+        if (NETWORKED_DISPLAY_AVC_HIGH) {
+            // Cluster content is mostly static, High profile with longer I-frame interval saves a
+            // lot of bandwidth. HEVC could be added in front once all receivers decode it.
+            networkedVirtualDisplay.setEncoderConfigs(
+                    EncoderConfig.createAvcHigh()
+                            .setBitrateMode(EncoderCapabilities.BITRATE_MODE_VBR)
+                            .setIFrameIntervalSec(2),
+                    EncoderConfig.createAvcBaseline());
+        }
+        // Display is created only once a receiver connects, so the name is known in time.
+        String displayName = networkedVirtualDisplay.start();
+        mRegistry.addNetworkedDisplayName(displayName);
+        mNetworkedVirtualDisplaysByName.put(displayName, networkedVirtualDisplay);
+        mNetworkedVirtualDisplays.add(networkedVirtualDisplay);
+    }
 
-        }, null);
+    /** Returns ids of all connected cluster displays. */
+    List<Integer> getClusterDisplayIds() {
+        return mRegistry.getDisplayIds(ClusterDisplayRegistry.ROLE_CLUSTER);
     }
 
-    private static Display getInstrumentClusterDisplay(DisplayManager displayManager) {
-        Display[] displays = displayManager.getDisplays();
-        Log.d(TAG, "There are currently " + displays.length + " displays connected.");
+    /** Enables tracing of the networked display streams, no-op for physical displays. */
+    void setStreamTraceEnabled(boolean enabled) {
+        for (NetworkedVirtualDisplay networkedVirtualDisplay : mNetworkedVirtualDisplays) {
+            networkedVirtualDisplay.setTraceEnabled(enabled);
+        }
+    }
+
+    /** Records the networked display streams to local storage, no-op for physical displays. */
+    void setStreamRecordingEnabled(boolean enabled) {
+        for (NetworkedVirtualDisplay networkedVirtualDisplay : mNetworkedVirtualDisplays) {
+            networkedVirtualDisplay.setRecordingEnabled(enabled);
+        }
+    }
+
+    /**
+     * Sends the stream of the first networked display as RTP to the destination or stops it if
+     * null, no-op for physical displays.
+     */
+    void setStreamRtpDestination(@Nullable InetSocketAddress destination, int fecGroupSize) {
+        if (!mNetworkedVirtualDisplays.isEmpty()) {
+            mNetworkedVirtualDisplays.get(0).setRtpDestination(destination, fecGroupSize);
+        }
+    }
 
-        if (displays.length > 1) {
-            // TODO: assuming that secondary display is instrument cluster. Put this into settings?
-            // We could use name and ownerPackageName to verify this is the right display.
-            return displays[1];
+    void dump(PrintWriter writer) {
+        writer.println(this);
+        for (NetworkedVirtualDisplay networkedVirtualDisplay : mNetworkedVirtualDisplays) {
+            networkedVirtualDisplay.dump(writer);
         }
-        return null;
     }
 
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{"
-                + " clusterDisplayId = " + mClusterDisplayId
+                + " registry = " + mRegistry
                 + "}";
     }
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import android.hardware.display.DisplayManager;
+import android.hardware.display.DisplayManager.DisplayListener;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Display;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of all displays the cluster renderer may use and classifies them by role, so rigs
+ * with several screens (cluster, HUD, passenger) can be driven at the same time.
+ * <p>
+ * A display is classified by name and flags once, when it is added:
+ * <ul>
+ *     <li>networked displays registered with {@link #addNetworkedDisplayName} are clusters,</li>
+ *     <li>the default display and other private displays, e.g. of the navigation fragment, are
+ *     ignored,</li>
+ *     <li>other displays are classified by name ({@code NAME_HUD}, {@code NAME_PASSENGER},
+ *     {@code NAME_CLUSTER}), remaining public presentation displays (HDMI, overlay displays) are
+ *     clusters,</li>
+ *     <li>if there is no cluster among the displays connected at {@link #start()}, the first
+ *     remaining public physical display is the cluster, as on rigs whose displays have neither
+ *     a known name nor the presentation flag. Virtual displays and displays owned by other apps
+ *     never are.</li>
+ * </ul>
+ * This is the only display listener of the app: display events are received on a background
+ * thread, so hotplug storms during boot never reach the main thread. Display identity and
+ * metadata are resolved once per display and cached in {@link DisplayInfo}, removal and change
+ * callbacks are a single map lookup without querying {@link DisplayManager}.
+ * <p>
+ * The registry notifies its listener only about classified displays, on the registry thread (see
+ * {@link #getHandler()}). {@link ClusterDisplayProvider} passes cluster displays on to its own
+ * listener on the looper of the thread that created the provider.
+ * <p>
+ * Queries are thread safe.
+ */
+class ClusterDisplayRegistry implements DisplayListener {
+    private static final String TAG = "Cluster." + ClusterDisplayRegistry.class.getSimpleName();
+
+    static final int ROLE_NONE = 0;
+    static final int ROLE_CLUSTER = 1;
+    static final int ROLE_HUD = 2;
+    static final int ROLE_PASSENGER = 3;
+
+    /** {@code Display.TYPE_VIRTUAL}, hidden like the getters below. */
+    private static final int DISPLAY_TYPE_VIRTUAL = 5;
+
+    // Lower case name fragments of physical displays.
+    private static final String NAME_CLUSTER = "cluster";
+    private static final String NAME_HUD = "hud";
+    private static final String NAME_PASSENGER = "passenger";
+
+    interface Listener {
+        /** Called when a display has been added and classified. */
+        void onDisplayAdded(DisplayInfo display);
+
+        /** Called when a classified display has been removed. */
+        void onDisplayRemoved(DisplayInfo display);
+
+        /** Called when a classified display has changed, e.g. its size. */
+        void onDisplayChanged(DisplayInfo display);
+    }
+
+    /** Display metadata resolved when the display was added. */
+    static class DisplayInfo {
+        final int displayId;
+        final String name;
+        final int flags;
+        /** One of {@code ROLE_*}. */
+        final int role;
+
+        DisplayInfo(int displayId, String name, int flags, int role) {
+            this.displayId = displayId;
+            this.name = name;
+            this.flags = flags;
+            this.role = role;
+        }
+
+        @Override
+        public String toString() {
+            return "{id: " + displayId + ", name: " + name + ", flags: " + flags
+                    + ", role: " + role + "}";
+        }
+    }
+
+    private final DisplayManager mDisplayManager;
+    private final Listener mListener;
+    private final Set<String> mNetworkedDisplayNames =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Every classified display by display id.
+    private final Map<Integer, DisplayInfo> mDisplays = new ConcurrentHashMap<>();
+    private final HandlerThread mThread = new HandlerThread("ClusterDisplayThread");
+    private Handler mHandler;
+
+    ClusterDisplayRegistry(DisplayManager displayManager, Listener listener) {
+        mDisplayManager = displayManager;
+        mListener = listener;
+    }
+
+    /**
+     * Registers name of a networked display created by this app, may be called from any thread
+     * before the display is created.
+     */
+    void addNetworkedDisplayName(String name) {
+        mNetworkedDisplayNames.add(name);
+    }
+
+    /**
+     * Starts the registry thread, listens for display changes and reports displays that are
+     * already connected. Tasks posted to {@link #getHandler()} afterwards run once those have been
+     * reported.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        // Registered first, so no display is missed, duplicates are ignored by onDisplayAdded.
+        mDisplayManager.registerDisplayListener(this, mHandler);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Display display : mDisplayManager.getDisplays()) {
+                    onDisplayAdded(display, true /* initial */);
+                }
+            }
+        });
+    }
+
+    void stop() {
+        mDisplayManager.unregisterDisplayListener(this);
+        mThread.quitSafely();
+        mDisplays.clear();
+    }
+
+    /** Returns handler of the registry thread all listener callbacks are delivered on. */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /** Returns cached metadata of a classified display or null. */
+    DisplayInfo getDisplay(int displayId) {
+        return mDisplays.get(displayId);
+    }
+
+    /** Returns ids of all connected displays with the given role. */
+    List<Integer> getDisplayIds(int role) {
+        List<Integer> displayIds = new ArrayList<>();
+        for (DisplayInfo display : mDisplays.values()) {
+            if (display.role == role) {
+                displayIds.add(display.displayId);
+            }
+        }
+        return displayIds;
+    }
+
+    @Override
+    public void onDisplayAdded(int displayId) {
+        if (mDisplays.containsKey(displayId)) return;
+
+        Display display = mDisplayManager.getDisplay(displayId);
+        if (display != null) {
+            onDisplayAdded(display, false /* initial */);
+        }
+    }
+
+    @Override
+    public void onDisplayRemoved(int displayId) {
+        DisplayInfo display = mDisplays.remove(displayId);
+        if (display != null) {
+            Log.i(TAG, "Display removed: " + display);
+            mListener.onDisplayRemoved(display);
+        }
+    }
+
+    @Override
+    public void onDisplayChanged(int displayId) {
+        DisplayInfo display = mDisplays.get(displayId);
+        if (display != null) {
+            mListener.onDisplayChanged(display);
+        }
+    }
+
+    /** @param initial true if the display was connected when the registry was started */
+    private void onDisplayAdded(Display display, boolean initial) {
+        int displayId = display.getDisplayId();
+        if (mDisplays.containsKey(displayId)) return;
+
+        String name = display.getName();
+        int flags = display.getFlags();
+        int role = classify(display, name, flags, initial);
+        if (role == ROLE_NONE) return;
+
+        DisplayInfo info = new DisplayInfo(displayId, name, flags, role);
+        mDisplays.put(displayId, info);
+        Log.i(TAG, "Display added: " + info);
+        mListener.onDisplayAdded(info);
+    }
+
+    private int classify(Display display, String name, int flags, boolean initial) {
+        if (display.getDisplayId() == Display.DEFAULT_DISPLAY) return ROLE_NONE;
+        if (mNetworkedDisplayNames.contains(name)) return ROLE_CLUSTER;
+        if ((flags & Display.FLAG_PRIVATE) != 0) return ROLE_NONE;
+
+        String lowerCaseName = name != null ? name.toLowerCase(Locale.US) : "";
+        if (lowerCaseName.contains(NAME_HUD)) return ROLE_HUD;
+        if (lowerCaseName.contains(NAME_PASSENGER)) return ROLE_PASSENGER;
+        if (lowerCaseName.contains(NAME_CLUSTER)) return ROLE_CLUSTER;
+        if ((flags & Display.FLAG_PRESENTATION) != 0) return ROLE_CLUSTER;
+        // Later displays are left alone, in networked mode there is no cluster until a receiver
+        // connects and displays of other apps must not be taken meanwhile.
+        boolean fallback = initial && getDisplayIds(ROLE_CLUSTER).isEmpty()
+                && isOwnPhysicalDisplay(display);
+        return fallback ? ROLE_CLUSTER : ROLE_NONE;
+    }
+
+    /**
+     * Returns true if the display is not virtual and not owned by another app. Type and owner are
+     * hidden, false is returned if they can't be read.
+     */
+    private static boolean isOwnPhysicalDisplay(Display display) {
+        try {
+            Method getType = Display.class.getMethod("getType");
+            Method getOwnerUid = Display.class.getMethod("getOwnerUid");
+            int type = (Integer) getType.invoke(display);
+            int ownerUid = (Integer) getOwnerUid.invoke(display);
+            // Displays that are not owned by an app have owner uid 0.
+            return type != DISPLAY_TYPE_VIRTUAL
+                    && (ownerUid == 0 || ownerUid == Process.myUid());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.w(TAG, "Couldn't read type and owner of display " + display.getDisplayId(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "displays: " + mDisplays.values()
+                + ", networkedDisplayNames: " + mNetworkedDisplayNames
+                + "}";
+    }
+}
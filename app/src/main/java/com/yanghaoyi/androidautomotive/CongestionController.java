@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts bitrate of the {@link FrameSource} to the slowest connected receiver.
+ * <p>
+ * Every {@link #SAMPLE_INTERVAL_MS} the owner calls {@link #onSample} with the current receivers.
+ * If any receiver has a deep send queue, frames took longer than {@link #TARGET_LATENCY_MS} to be
+ * written, or the receiver reported lost frames or a round trip time above the same target, the
+ * bitrate is multiplicatively decreased; after several clear samples it is additively
+ * increased back up to the configured maximum. Receivers that fall behind by more than
+ * {@link #MAX_LATENCY_MS} skip frames up to the next key frame, so latency stays bounded instead of
+ * growing with the backlog. A sync frame is requested for such receivers at most once per sample,
+ * receivers that had to drop reference frames (see {@link StreamReceiver#offer}) get one requested
+ * by {@link StreamServer} right away.
+ */
+class CongestionController {
+    static final long SAMPLE_INTERVAL_MS = 500;
+
+    private static final long TARGET_LATENCY_MS = 100;
+    private static final long MAX_LATENCY_MS = 500;
+    private static final int HIGH_QUEUE_DEPTH = 3;
+    private static final int CLEAR_SAMPLES_BEFORE_INCREASE = 4;
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final FrameSource mSource;
+
+    private int mBitrate;
+    private int mClearSamples;
+    private long mDecreaseCount;
+    private long mIncreaseCount;
+    private long mSkipToKeyFrameCount;
+
+    CongestionController(int minBitrate, int maxBitrate, FrameSource source) {
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mSource = source;
+        mBitrate = maxBitrate;
+    }
+
+    /** Returns bitrate the encoder should be currently using. */
+    int getBitrate() {
+        return mBitrate;
+    }
+
+    /** Starts over from the maximum bitrate, should be called when a new encoder is created. */
+    void reset() {
+        mBitrate = mMaxBitrate;
+        mClearSamples = 0;
+    }
+
+    void onSample(List<StreamReceiver> receivers) {
+        boolean congested = false;
+        boolean skipToKeyFrame = false;
+
+        for (StreamReceiver receiver : receivers) {
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(receiver.takeMaxWriteLatencyNanos());
+            int queueDepth = receiver.getPendingFrameCount();
+
+            long rttMs = TimeUnit.MICROSECONDS.toMillis(receiver.takeMaxRttUs());
+            // Set if the receiver dropped a frame others depend on because its queue was full, sync
+            // frame has already been requested by StreamServer.
+            boolean keyFrameNeeded = receiver.takeKeyFrameNeeded();
+            // Sync frame has already been requested by StreamServer.
+            boolean lossReported = receiver.takeLossReported();
+
+            if (latencyMs > TARGET_LATENCY_MS || queueDepth >= HIGH_QUEUE_DEPTH
+                    || rttMs > TARGET_LATENCY_MS || keyFrameNeeded || lossReported) {
+                congested = true;
+            }
+            if (latencyMs > MAX_LATENCY_MS && !receiver.isAwaitingKeyFrame()) {
+                receiver.setAwaitingKeyFrame(true);
+                skipToKeyFrame = true;
+                mSkipToKeyFrameCount++;
+            } else if (keyFrameNeeded) {
+                mSkipToKeyFrameCount++;
+            }
+        }
+
+        if (congested) {
+            mClearSamples = 0;
+            setBitrate(Math.max(mMinBitrate, mBitrate / 4 * 3));
+        } else if (++mClearSamples >= CLEAR_SAMPLES_BEFORE_INCREASE) {
+            mClearSamples = 0;
+            setBitrate(Math.min(mMaxBitrate, mBitrate + mMaxBitrate / 16));
+        }
+
+        if (skipToKeyFrame) {
+            mSource.requestSyncFrame();
+        }
+    }
+
+    private void setBitrate(int bitrate) {
+        if (bitrate == mBitrate) return;
+
+        if (bitrate < mBitrate) {
+            mDecreaseCount++;
+        } else {
+            mIncreaseCount++;
+        }
+        mBitrate = bitrate;
+        mSource.setBitrate(bitrate);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "bitrate: " + mBitrate
+                + ", decreased: " + mDecreaseCount
+                + ", increased: " + mIncreaseCount
+                + ", skippedToKeyFrame: " + mSkipToKeyFrameCount
+                + "}";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small thread-safe pool of direct {@link ByteBuffer}s, used to keep copies of encoded frames
+ * without allocating a new direct buffer every time.
+ * <p>
+ * Capacities are rounded up to a power of two, so frames of similar size share buffers. Each
+ * request takes the smallest pooled buffer that fits, smaller ones stay pooled for smaller frames.
+ */
+class DirectBufferPool implements EncodedFrame.Recycler {
+    private static final int MIN_CAPACITY = 4 * 1024;
+
+    private final int mMaxPooledBuffers;
+    private final List<ByteBuffer> mBuffers = new ArrayList<>();
+
+    DirectBufferPool(int maxPooledBuffers) {
+        mMaxPooledBuffers = maxPooledBuffers;
+    }
+
+    /** Returns a cleared direct buffer with at least {@code capacity} bytes. */
+    synchronized ByteBuffer acquire(int capacity) {
+        int best = -1;
+        for (int i = 0; i < mBuffers.size(); i++) {
+            int bufferCapacity = mBuffers.get(i).capacity();
+            if (bufferCapacity >= capacity
+                    && (best == -1 || bufferCapacity < mBuffers.get(best).capacity())) {
+                best = i;
+            }
+        }
+        if (best == -1) {
+            return ByteBuffer.allocateDirect(roundUpCapacity(capacity));
+        }
+        ByteBuffer buffer = mBuffers.remove(best);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns the smallest power of two not less than {@code capacity} or the minimum. */
+    static int roundUpCapacity(int capacity) {
+        if (capacity <= MIN_CAPACITY) return MIN_CAPACITY;
+
+        int rounded = Integer.highestOneBit(capacity - 1) << 1;
+        // Beyond the largest int power of two.
+        return rounded > 0 ? rounded : capacity;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        if (mBuffers.size() < mMaxPooledBuffers) {
+            mBuffers.add(buffer);
+        }
+    }
+
+    /** Frames created with {@link EncodedFrame#copyInto} return their buffer to this pool. */
+    @Override
+    public void recycle(EncodedFrame frame) {
+        release(frame.getBuffer());
+    }
+}
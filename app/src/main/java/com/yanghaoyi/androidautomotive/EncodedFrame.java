@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single encoded access unit shared between all consumers of the cluster video stream.
+ * <p>
+ * The frame is reference counted: whoever keeps the frame beyond the current call must
+ * {@link #retain()} it and {@link #release()} it when done. Once the last reference is released the
+ * frame is handed to its {@link Recycler}, which may return the underlying buffer to the encoder or
+ * to a buffer pool. Frame content must never be modified, consumers only use views returned by
+ * {@link #data()}.
+ */
+class EncodedFrame {
+    /** Same value as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME}. */
+    static final int FLAG_KEY_FRAME = 1;
+    /** Same value as {@code MediaCodec.BUFFER_FLAG_CODEC_CONFIG}. */
+    static final int FLAG_CODEC_CONFIG = 2;
+    /** Not a codec flag, marks frames sent only to keep the connection alive while idle. */
+    static final int FLAG_KEEPALIVE = 1 << 16;
+    /**
+     * Not a codec flag, marks frames no other frame is predicted from (AVC {@code nal_ref_idc} 0,
+     * HEVC sub-layer non-reference pictures), which can be dropped without affecting later frames.
+     */
+    static final int FLAG_DISPOSABLE = 1 << 17;
+
+    interface Recycler {
+        /** Called once the last reference to the frame has been released, on any thread. */
+        void recycle(EncodedFrame frame);
+    }
+
+    /** Releases the source of frames created by {@link #viewOf}. */
+    private static final Recycler SOURCE_RECYCLER = new Recycler() {
+        @Override
+        public void recycle(EncodedFrame frame) {
+            frame.mSource.release();
+        }
+    };
+
+    private final ByteBuffer mData;
+    private final long mPresentationTimeUs;
+    private final int mFlags;
+    private final Recycler mRecycler;
+    private final int mBufferIndex;
+    private final EncodedFrame mSource;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private volatile ByteBuffer mHeader;
+    private volatile long mQueuedAtNanos;
+
+    private EncodedFrame(ByteBuffer data, long presentationTimeUs, int flags, Recycler recycler,
+            int bufferIndex) {
+        this(data, presentationTimeUs, flags, recycler, bufferIndex, null);
+    }
+
+    private EncodedFrame(ByteBuffer data, long presentationTimeUs, int flags, Recycler recycler,
+            int bufferIndex, EncodedFrame source) {
+        mData = data;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+        mRecycler = recycler;
+        mBufferIndex = bufferIndex;
+        mSource = source;
+    }
+
+    /**
+     * Wraps buffer owned by somebody else (e.g. encoder output buffer) without copying it. Such
+     * frames should be released as soon as possible as the owner may run out of buffers.
+     *
+     * @param data frame content between position and limit
+     * @param bufferIndex owner specific buffer index, see {@link #getBufferIndex()}
+     */
+    static EncodedFrame wrap(ByteBuffer data, long presentationTimeUs, int flags,
+            Recycler recycler, int bufferIndex) {
+        return new EncodedFrame(data.slice(), presentationTimeUs, flags, recycler, bufferIndex);
+    }
+
+    /**
+     * Creates a new frame sharing content of {@code source} without copying it, so the same
+     * content can be sent again with a different header. The source is released together with the
+     * returned frame.
+     */
+    static EncodedFrame viewOf(EncodedFrame source) {
+        source.retain();
+        return new EncodedFrame(source.mData, source.mPresentationTimeUs, source.mFlags,
+                SOURCE_RECYCLER, source.mBufferIndex, source);
+    }
+
+    /** Copies content of the given buffer into a new heap buffer owned by the frame. */
+    static EncodedFrame copyOf(ByteBuffer data, long presentationTimeUs, int flags) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        return new EncodedFrame(copy, presentationTimeUs, flags, null, -1);
+    }
+
+    /**
+     * Copies content of the given buffer into {@code target} buffer which is passed to
+     * {@code recycler} once the frame is released.
+     */
+    static EncodedFrame copyInto(ByteBuffer target, ByteBuffer data, long presentationTimeUs,
+            int flags, Recycler recycler) {
+        target.clear();
+        target.put(data.duplicate());
+        target.flip();
+        return new EncodedFrame(target, presentationTimeUs, flags, recycler, -1);
+    }
+
+    /**
+     * Returns {@link #FLAG_DISPOSABLE} if the first slice of the Annex-B access unit between
+     * position and limit of {@code data} is not used for reference, 0 otherwise. Only NAL unit
+     * headers up to the first slice are read.
+     *
+     * @param hevc true for HEVC, false for AVC
+     */
+    static int getDisposableFlag(ByteBuffer data, boolean hevc) {
+        int limit = data.limit();
+        for (int i = data.position(); i + 3 < limit; i++) {
+            if (data.get(i) != 0 || data.get(i + 1) != 0 || data.get(i + 2) != 1) continue;
+
+            int header = data.get(i + 3) & 0xff;
+            if (hevc) {
+                int type = (header >> 1) & 0x3f;
+                // VCL types below 16 come in pairs, the even one is the non-reference variant.
+                if (type < 32) return type < 16 && type % 2 == 0 ? FLAG_DISPOSABLE : 0;
+            } else {
+                int type = header & 0x1f;
+                if (type >= 1 && type <= 5) return (header & 0x60) == 0 ? FLAG_DISPOSABLE : 0;
+            }
+            i += 3;
+        }
+        return 0;
+    }
+
+    /** Returns a new view of the frame content, caller may change its position and limit. */
+    ByteBuffer data() {
+        return mData.duplicate();
+    }
+
+    /**
+     * Sets wire header that is sent in front of the frame content, must be set before the frame
+     * is handed over to receivers.
+     */
+    void setHeader(ByteBuffer header) {
+        mHeader = header;
+    }
+
+    /** Returns a new view of the wire header or null if the frame is sent without header. */
+    ByteBuffer header() {
+        ByteBuffer header = mHeader;
+        return header != null ? header.duplicate() : null;
+    }
+
+    /** Records the time the frame has been handed over to receivers, if not recorded yet. */
+    void markQueued(long nowNanos) {
+        if (mQueuedAtNanos == 0) {
+            mQueuedAtNanos = nowNanos;
+        }
+    }
+
+    /** Returns {@link System#nanoTime()} when the frame has been handed over to receivers. */
+    long getQueuedAtNanos() {
+        return mQueuedAtNanos;
+    }
+
+    /** Returns the buffer holding frame content, used by recyclers to take the buffer back. */
+    ByteBuffer getBuffer() {
+        return mData;
+    }
+
+    int size() {
+        return mData.remaining();
+    }
+
+    long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    int getFlags() {
+        return mFlags;
+    }
+
+    boolean isKeyFrame() {
+        return (mFlags & FLAG_KEY_FRAME) != 0;
+    }
+
+    boolean isCodecConfig() {
+        return (mFlags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    boolean isKeepalive() {
+        return (mFlags & FLAG_KEEPALIVE) != 0;
+    }
+
+    boolean isDisposable() {
+        return (mFlags & FLAG_DISPOSABLE) != 0;
+    }
+
+    /** Returns true if the frame repeats content of an earlier frame, see {@link #viewOf}. */
+    boolean isRepeated() {
+        return mSource != null;
+    }
+
+    /** Returns true if the frame wraps a buffer borrowed from the encoder. */
+    boolean isBorrowed() {
+        return mBufferIndex >= 0;
+    }
+
+    int getBufferIndex() {
+        return mBufferIndex;
+    }
+
+    EncodedFrame retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame already released: " + this);
+        }
+        return this;
+    }
+
+    void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            if (mRecycler != null) {
+                mRecycler.recycle(this);
+            }
+        } else if (refCount < 0) {
+            throw new IllegalStateException("Frame released too many times: " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "size: " + mData.remaining()
+                + ", pts: " + mPresentationTimeUs
+                + ", flags: " + mFlags
+                + ", refs: " + mRefCount.get()
+                + "}";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Describes how the cluster video stream should be encoded: MIME type, profile / level, bitrate
+ * mode, I-frame interval and intra refresh.
+ * <p>
+ * A list of configurations ordered by preference is passed to {@link #negotiate}, which returns
+ * the first one supported by an encoder on this device, so the stream can use HEVC or AVC High
+ * where available and fall back to AVC Baseline everywhere else.
+ */
+class EncoderConfig {
+    private static final String TAG = "Cluster." + EncoderConfig.class.getSimpleName();
+
+    /** Let the encoder choose the level. */
+    static final int LEVEL_DEFAULT = 0;
+
+    private final String mMimeType;
+    private final int mProfile;
+    private int mLevel = LEVEL_DEFAULT;
+    private int mBitrateMode = EncoderCapabilities.BITRATE_MODE_VBR;
+    private float mIFrameIntervalSec = 1;
+    private int mIntraRefreshPeriod;
+    private String mCodecName;
+
+    /** Use factory methods instead. */
+    private EncoderConfig(String mimeType, int profile) {
+        mMimeType = mimeType;
+        mProfile = profile;
+    }
+
+    /** AVC Baseline, supported by every decoder, used as the last fallback. */
+    static EncoderConfig createAvcBaseline() {
+        return new EncoderConfig(MediaFormat.MIMETYPE_VIDEO_AVC,
+                CodecProfileLevel.AVCProfileBaseline)
+                .setLevel(CodecProfileLevel.AVCLevel31);
+    }
+
+    static EncoderConfig createAvcHigh() {
+        return new EncoderConfig(MediaFormat.MIMETYPE_VIDEO_AVC, CodecProfileLevel.AVCProfileHigh);
+    }
+
+    static EncoderConfig createHevcMain() {
+        return new EncoderConfig(MediaFormat.MIMETYPE_VIDEO_HEVC,
+                CodecProfileLevel.HEVCProfileMain);
+    }
+
+    EncoderConfig setLevel(int level) {
+        mLevel = level;
+        return this;
+    }
+
+    /**
+     * @param bitrateMode one of {@link EncoderCapabilities#BITRATE_MODE_CBR},
+     *                    {@link EncoderCapabilities#BITRATE_MODE_VBR}
+     */
+    EncoderConfig setBitrateMode(int bitrateMode) {
+        mBitrateMode = bitrateMode;
+        return this;
+    }
+
+    EncoderConfig setIFrameIntervalSec(float iFrameIntervalSec) {
+        mIFrameIntervalSec = iFrameIntervalSec;
+        return this;
+    }
+
+    /**
+     * Enables intra refresh, every frame refreshes a part of the picture so the whole picture is
+     * refreshed every {@code periodFrames} frames. Ignored if the encoder doesn't support it.
+     */
+    EncoderConfig setIntraRefreshPeriod(int periodFrames) {
+        mIntraRefreshPeriod = periodFrames;
+        return this;
+    }
+
+    String getMimeType() {
+        return mMimeType;
+    }
+
+    /** Returns name of the encoder selected by {@link #negotiate} or null. */
+    @Nullable
+    String getCodecName() {
+        return mCodecName;
+    }
+
+    /**
+     * Returns the first configuration from {@code fallbackChain} that is supported by an encoder on
+     * this device, with the encoder name set and settings adjusted to the encoder capabilities.
+     *
+     * @return selected configuration or null if none of them is supported
+     */
+    @Nullable
+    static EncoderConfig negotiate(EncoderConfig[] fallbackChain, int width, int height) {
+        MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS)
+                .getCodecInfos();
+
+        for (EncoderConfig config : fallbackChain) {
+            for (MediaCodecInfo info : codecInfos) {
+                if (info.isEncoder() && config.adjustTo(info, width, height)) {
+                    Log.i(TAG, "Selected " + config);
+                    return config;
+                }
+            }
+            Log.i(TAG, "No encoder supports " + config + ", trying next one");
+        }
+        return null;
+    }
+
+    private boolean adjustTo(MediaCodecInfo info, int width, int height) {
+        CodecCapabilities caps;
+        try {
+            caps = info.getCapabilitiesForType(mMimeType);
+        } catch (IllegalArgumentException e) {
+            return false;  // MIME type not supported by this codec.
+        }
+        if (!caps.getVideoCapabilities().isSizeSupported(width, height)) return false;
+
+        int maxLevel = -1;
+        for (CodecProfileLevel profileLevel : caps.profileLevels) {
+            if (profileLevel.profile == mProfile) {
+                maxLevel = Math.max(maxLevel, profileLevel.level);
+            }
+        }
+        if (maxLevel == -1) return false;
+
+        if (mLevel > maxLevel) {
+            mLevel = maxLevel;
+        }
+        if (!caps.getEncoderCapabilities().isBitrateModeSupported(mBitrateMode)) {
+            mBitrateMode = EncoderCapabilities.BITRATE_MODE_VBR;
+        }
+        if (mIntraRefreshPeriod > 0
+                && !caps.isFeatureSupported(CodecCapabilities.FEATURE_IntraRefresh)) {
+            mIntraRefreshPeriod = 0;
+        }
+        mCodecName = info.getName();
+        return true;
+    }
+
+    MediaFormat createMediaFormat(int width, int height, int bitrate, int fps) {
+        MediaFormat format = MediaFormat.createVideoFormat(mMimeType, width, height);
+
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+        format.setInteger(MediaFormat.KEY_CAPTURE_RATE, fps);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+        format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameIntervalSec);
+        format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+        if (mLevel != LEVEL_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+        }
+        if (mIntraRefreshPeriod > 0) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, mIntraRefreshPeriod);
+        }
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + mMimeType
+                + ", profile: " + mProfile
+                + ", level: " + mLevel
+                + ", bitrateMode: " + mBitrateMode
+                + ", iFrameInterval: " + mIFrameIntervalSec
+                + ", intraRefreshPeriod: " + mIntraRefreshPeriod
+                + ", codec: " + mCodecName
+                + "}";
+    }
+}
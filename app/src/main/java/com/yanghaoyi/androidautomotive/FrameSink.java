@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+/**
+ * Consumes encoded frames produced by a {@link FrameSource}, e.g. {@link StreamServer} sending
+ * them to network receivers or {@link StreamRecorder} writing them to local storage.
+ */
+interface FrameSink {
+    /**
+     * Called on the source thread for every frame. The sink must retain the frame if it keeps it
+     * after returning, frames borrowed from the source should be retained only briefly.
+     */
+    void onFrame(EncodedFrame frame);
+}
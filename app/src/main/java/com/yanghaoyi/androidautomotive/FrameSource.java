@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+/**
+ * Produces encoded frames for {@link FrameSink}s, e.g. the encoder of
+ * {@link NetworkedVirtualDisplay}. Sinks use this interface to give feedback to the source.
+ * <p>
+ * Methods are called on the thread the source delivers frames on.
+ */
+interface FrameSource {
+    /** Asks the source to make the next frame a key frame. */
+    void requestSyncFrame();
+
+    /** Changes target bitrate of the source, sources not able to change it ignore the call. */
+    void setBitrate(int bitrate);
+}
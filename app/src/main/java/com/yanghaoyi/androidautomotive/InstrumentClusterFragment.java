@@ -31,6 +31,7 @@ import com.yanghaoyi.aosp.car.Car;
 import com.yanghaoyi.aosp.car.CarAppFocusManager;
 import com.yanghaoyi.aosp.car.CarConnectionCallback;
 import com.yanghaoyi.aosp.car.CarNotConnectedException;
+import com.yanghaoyi.aosp.car.navigation.CarNavigationState;
 import com.yanghaoyi.aosp.car.navigation.CarNavigationStatusManager;
 
 import static com.yanghaoyi.aosp.car.Car.APP_FOCUS_SERVICE;
@@ -125,10 +126,12 @@ public class InstrumentClusterFragment extends Fragment {
 
     private void sendTurn() {
         // TODO(deanh): Make this actually meaningful.
-        Bundle bundle = new Bundle();
-        bundle.putString("someName", "someValue time=" + System.currentTimeMillis());
+        CarNavigationState state = new CarNavigationState.Builder()
+                .setManeuver(CarNavigationState.MANEUVER_TURN, CarNavigationState.TURN_SIDE_LEFT)
+                .setDistanceToManeuver((int) (System.currentTimeMillis() / 1000 % 500), 30)
+                .build();
         try {
-            mCarNavigationStatusManager.sendEvent(1, bundle);
+            mCarNavigationStatusManager.sendNavigationState(state);
         } catch(CarNotConnectedException e) {
             Log.e(TAG, "Failed to send turn information.", e);
         }
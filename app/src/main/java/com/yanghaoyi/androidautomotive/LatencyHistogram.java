@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of durations in microseconds.
+ * <p>
+ * Every power of two is split into {@code 1 << SUB_BUCKET_BITS} buckets, so reported percentiles
+ * are within 25% of the real value. Recording is wait-free apart from the max update and does not
+ * allocate, so it can be used on the streaming hot path from any thread.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    void recordNanos(long durationNanos) {
+        record(durationNanos / 1000);
+    }
+
+    void record(long valueUs) {
+        if (valueUs < 0) valueUs = 0;
+
+        mBuckets.incrementAndGet(bucketIndex(valueUs));
+        mCount.incrementAndGet();
+        mSumUs.addAndGet(valueUs);
+
+        long max = mMaxUs.get();
+        while (valueUs > max && !mMaxUs.compareAndSet(max, valueUs)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile, 0 if nothing has been
+     * recorded yet.
+     *
+     * @param percentile value between 0 and 100
+     */
+    long getPercentileUs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+
+        long threshold = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= threshold) {
+                return Math.min(bucketUpperBound(i), mMaxUs.get());
+            }
+        }
+        return mMaxUs.get();
+    }
+
+    private static int bucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKETS) return (int) valueUs;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        int subBucket = (int) (valueUs >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        long count = mCount.get();
+        return "count=" + count
+                + ", avg=" + (count > 0 ? mSumUs.get() / count : 0) + "us"
+                + ", p50=" + getPercentileUs(50) + "us"
+                + ", p95=" + getPercentileUs(95) + "us"
+                + ", p99=" + getPercentileUs(99) + "us"
+                + ", max=" + mMaxUs.get() + "us";
+    }
+}
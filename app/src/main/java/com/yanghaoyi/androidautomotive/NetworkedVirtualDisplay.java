@@ -23,33 +23,50 @@ import android.hardware.display.VirtualDisplay;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodec.CodecException;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecProfileLevel;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.Display;
 import android.view.Surface;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class encapsulates all work related to managing networked virtual display.
  * <p>
- * It opens server socket and listens on port {@code PORT} for incoming connections. Once connection
- * is established it creates virtual display and media encoder and starts streaming video to that
- * socket.  If the receiving part is disconnected, it will keep port open and virtual display won't
- * be destroyed.
+ * It opens server socket and listens on port {@code DEFAULT_PORT} (see {@link #setPort(int)}) for
+ * incoming connections. Once the first connection is established it creates virtual display and
+ * media encoder and starts streaming video to that socket. Several receivers may be connected at
+ * the same time, each with its own bounded send queue (see {@link StreamReceiver}). If all of them
+ * are disconnected, it will keep port open and virtual display and encoder won't be destroyed.
+ * <p>
+ * The encoder feeds {@link StreamServer}, which replays the stream start to late joiners and
+ * leaves socket I/O to {@link SelectorTransport}, so a slow receiver never stalls the network
+ * thread. Encoder config, bitrate and display size adapt to the receivers, see
+ * {@link #setEncoderConfigs}, {@link CongestionController} and
+ * {@link StreamProtocol#MESSAGE_HELLO}.
+ * <p>
+ * When the display content doesn't change for {@code IDLE_TIMEOUT_MS}, receivers get a keepalive
+ * every {@code KEEPALIVE_INTERVAL_MS} instead of frames, see {@link #sendKeepalive()}. The stream
+ * can also be recorded and sent as RTP, see {@link #setRecordingEnabled(boolean)} and
+ * {@link #setRtpDestination}, and traced with {@link #setTraceEnabled(boolean)}.
  */
 public class NetworkedVirtualDisplay {
     private static final String TAG = "Cluster." + NetworkedVirtualDisplay.class.getSimpleName();
@@ -57,53 +74,125 @@ public class NetworkedVirtualDisplay {
     private final String mUniqueId =  UUID.randomUUID().toString();
 
     private final DisplayManager mDisplayManager;
-    private final int mWidth;
-    private final int mHeight;
-    private final int mDpi;
-
-    private static final int PORT = 5151;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private final int mMaxDpi;
+    // Current display size, accessed only from the network thread once started.
+    private int mWidth;
+    private int mHeight;
+    private int mDpi;
+
+    static final int DEFAULT_PORT = 5151;
     private static final int FPS = 25;
     private static final int BITRATE = 6144000;
-    private static final String MEDIA_FORMAT_MIMETYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final int MIN_BITRATE = 1024000;
+    private static final boolean SUSPEND_WHEN_IDLE = true;
+    private static final boolean ZERO_COPY_OUTPUT = true;
+    /** Requested display sizes are rounded down to whole macroblocks, which all encoders take. */
+    private static final int SIZE_ALIGNMENT = 16;
+    private static final int MIN_SIZE = 8 * SIZE_ALIGNMENT;
+    private static final long IDLE_TIMEOUT_MS = 500;
+    private static final long KEEPALIVE_INTERVAL_MS = 1000;
+    /** Maximum time to wait for receivers to release encoder output buffers. */
+    private static final long OUTPUT_BUFFER_RETURN_TIMEOUT_MS = 200;
+
+    /** Access unit delimiters, the smallest valid NAL units, sent as keepalives in raw format. */
+    private static final ByteBuffer AVC_ACCESS_UNIT_DELIMITER = ByteBuffer.wrap(
+            new byte[] { 0, 0, 0, 1, 0x09, (byte) 0xf0 }).asReadOnlyBuffer();
+    private static final ByteBuffer HEVC_ACCESS_UNIT_DELIMITER = ByteBuffer.wrap(
+            new byte[] { 0, 0, 0, 1, 0x46, 0x01, 0x50 }).asReadOnlyBuffer();
+
+    private static final String RECORDING_DIRECTORY = "cluster_recording";
+    private static final int RECORDING_SEGMENT_COUNT = 5;
+    private static final int RECORDING_SEGMENT_SIZE = 32 * 1024 * 1024;
+    private static final long RECORDING_SEGMENT_DURATION_MS = 60 * 1000;
 
     private static final int MSG_START = 0;
-    private static final int MSG_STOP = 1;
-    private static final int MSG_RESUBMIT_FRAME = 2;
+    private static final int MSG_RELEASE_OUTPUT_BUFFER = 5;
+    private static final int MSG_ADJUST_BITRATE = 6;
+    private static final int MSG_IDLE = 7;
+    private static final int MSG_SEND_KEEPALIVE = 8;
+    private static final int MSG_SET_RECORDING = 9;
+    private static final int MSG_SET_RTP_DESTINATION = 10;
+    private static final int MSG_RELEASE = 11;
 
     private VirtualDisplay mVirtualDisplay;
     private MediaCodec mVideoEncoder;
     private HandlerThread mThread = new HandlerThread("NetworkThread");
     private Handler mHandler;
-    private ServerSocket mServerSocket;
-    private OutputStream mOutputStream;
-    private byte[] mBuffer = null;
-    private int mLastFrameLength = 0;
+    private StreamServer mServer;
+    private EncodedFrame.Recycler mOutputBufferRecycler;
+    private int mPort = DEFAULT_PORT;
+    private int mWireFormat = StreamProtocol.WIRE_FORMAT_RAW;
+    private EncoderConfig[] mEncoderConfigs = { EncoderConfig.createAvcBaseline() };
+    private EncoderConfig mEncoderConfig;
+    private boolean mEncoderSuspended;
+    private boolean mIdle;
+    private long mIdleSinceNanos;
+    private final File mFilesDir;
+    private StreamRecorder mRecorder;
+    // Writes finished recording segments, created with the first recorder.
+    private ExecutorService mRecordingWriter;
+    private RtpSender mRtpSender;
+
+    private final StreamStats mStats = new StreamStats();
+    private final StreamTrace mTrace = new StreamTrace();
+    private final FrameSource mEncoderSource = new FrameSource() {
+        @Override
+        public void requestSyncFrame() {
+            NetworkedVirtualDisplay.this.requestSyncFrame();
+        }
+
+        @Override
+        public void setBitrate(int bitrate) {
+            setEncoderBitrate(bitrate);
+        }
+    };
+    private final CongestionController mCongestionController = new CongestionController(
+            MIN_BITRATE, BITRATE, mEncoderSource);
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Not used, encoder input is a surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                @NonNull BufferInfo info) {
+            mStats.outputBuffers.incrementAndGet();
+            mTrace.event(StreamTrace.EVENT_OUTPUT_BUFFER, index, info.size);
+            mTrace.beginSection("Cluster:outputBuffer");
+            try {
+                doOutputBufferAvailable(index, info);
+            } finally {
+                mTrace.endSection();
+            }
+        }
 
-    private final DebugCounter mCounter = new DebugCounter();
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull CodecException e) {
+            Log.e(TAG, "onError, codec: " + codec, e);
+            mStats.bufferErrors.incrementAndGet();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                @NonNull MediaFormat format) {
+            Log.i(TAG, "onOutputFormatChanged, codec: " + codec + ", format: " + format);
+        }
+    };
 
     NetworkedVirtualDisplay(Context context, int width, int height, int dpi) {
         mDisplayManager = context.getSystemService(DisplayManager.class);
+        mMaxWidth = width;
+        mMaxHeight = height;
+        mMaxDpi = dpi;
         mWidth = width;
         mHeight = height;
         mDpi = dpi;
 
-        DisplayListener displayListener = new DisplayListener() {
-            @Override
-            public void onDisplayAdded(int i) {
-                final Display display = mDisplayManager.getDisplay(i);
-                if (display != null && getDisplayName().equals(display.getName())) {
-                    onVirtualDisplayReady(display);
-                }
-            }
-
-            @Override
-            public void onDisplayRemoved(int i) {}
-
-            @Override
-            public void onDisplayChanged(int i) {}
-        };
-
-        mDisplayManager.registerDisplayListener(displayListener, new Handler());
+        File filesDir = context.getExternalFilesDir(null);
+        mFilesDir = filesDir != null ? filesDir : context.getFilesDir();
     }
 
     /**
@@ -130,14 +219,86 @@ public class NetworkedVirtualDisplay {
         return getDisplayName();
     }
 
+    /**
+     * Sets port to listen on, should be called before {@link #start()}. Every networked display
+     * needs its own port, recordings of displays on other than {@code DEFAULT_PORT} go to their
+     * own directory.
+     */
+    void setPort(int port) {
+        mPort = port;
+    }
+
+    /**
+     * Sets format used to send the stream to receivers, should be called before {@link #start()}.
+     *
+     * @param wireFormat {@link StreamProtocol#WIRE_FORMAT_RAW} or
+     *                   {@link StreamProtocol#WIRE_FORMAT_FRAMED}
+     */
+    public void setWireFormat(int wireFormat) {
+        mWireFormat = wireFormat;
+    }
+
+    /**
+     * Sets encoder configurations ordered by preference, the first one supported by the device is
+     * used. Should be called before {@link #start()}. Receivers must be able to decode all of them.
+     */
+    void setEncoderConfigs(EncoderConfig... encoderConfigs) {
+        mEncoderConfigs = encoderConfigs;
+    }
+
+    /**
+     * Closes the server and releases encoder and virtual display on the network thread, which
+     * quits afterwards. May be called from any thread, returns right away.
+     */
     public void release() {
+        if (mHandler == null) return;  // Not started.
+
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_RELEASE));
+    }
+
+    private void doRelease() {
+        if (mServer != null) {
+            mServer.close();
+        }
         stopCasting();
 
         if (mVirtualDisplay != null) {
             mVirtualDisplay.release();
             mVirtualDisplay = null;
         }
-        mThread.quit();
+        if (mRecordingWriter != null) {
+            // Pending segments are still written.
+            mRecordingWriter.shutdown();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+    }
+
+    /** Enables systrace sections and the event log printed by {@link #dump}. */
+    void setTraceEnabled(boolean enabled) {
+        mTrace.setEnabled(enabled);
+    }
+
+    /**
+     * Starts or stops recording the stream into a ring of raw segment files in the app's external
+     * files directory, see {@link StreamRecorder}. The encoder keeps running while recording, even
+     * without receivers. Should be called after {@link #start()}.
+     */
+    void setRecordingEnabled(boolean enabled) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_RECORDING, enabled ? 1 : 0, 0));
+    }
+
+    /**
+     * Starts sending the stream as RTP over UDP to the destination, see {@link RtpSender}, or
+     * stops it if {@code destination} is null. Only one destination is supported, the encoder keeps
+     * running while sending, even without TCP receivers. Only AVC can be sent. Should be called
+     * after {@link #start()}.
+     *
+     * @param fecGroupSize number of packets protected by one parity packet, 0 disables FEC
+     */
+    void setRtpDestination(@Nullable InetSocketAddress destination, int fecGroupSize) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_RTP_DESTINATION, fecGroupSize, 0,
+                destination));
     }
 
     private String getDisplayName() {
@@ -151,66 +312,86 @@ public class NetworkedVirtualDisplay {
                 null, 0 /* flags */, null, null );
     }
 
-    private void onVirtualDisplayReady(Display display) {
-        Log.i(TAG, "onVirtualDisplayReady, display: " + display);
+    /**
+     * Called by the owner's display listener once the virtual display with the name returned by
+     * {@link #start()} has been added, see {@link ClusterDisplayRegistry}.
+     */
+    void onVirtualDisplayReady(int displayId) {
+        Log.i(TAG, "onVirtualDisplayReady, displayId: " + displayId);
     }
 
     private void startCasting(Handler handler) {
         Log.i(TAG, "Start casting...");
+        mCongestionController.reset();
         mVideoEncoder = createVideoStream(handler);
+        if (mVideoEncoder == null) {
+            Log.e(TAG, "No video encoder available, not casting");
+            return;
+        }
+        mOutputBufferRecycler = new OutputBufferRecycler(mVideoEncoder);
 
         if (mVirtualDisplay == null) {
             mVirtualDisplay = createVirtualDisplay();
         }
         mVirtualDisplay.setSurface(mVideoEncoder.createInputSurface());
         mVideoEncoder.start();
+        mHandler.sendEmptyMessageDelayed(MSG_ADJUST_BITRATE,
+                CongestionController.SAMPLE_INTERVAL_MS);
 
         Log.i(TAG, "Video encoder started");
     }
 
-    private MediaCodec createVideoStream(Handler handler) {
-        MediaCodec encoder;
-        try {
-            encoder = MediaCodec.createEncoderByType(MEDIA_FORMAT_MIMETYPE);
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to create video encoder for " + MEDIA_FORMAT_MIMETYPE, e);
-            return null;
-        }
-
-        encoder.setCallback(new MediaCodec.Callback() {
-            @Override
-            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                Log.i(TAG, "onInputBufferAvailable, index: " + index);
-            }
-
-            @Override
-            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
-                    @NonNull BufferInfo info) {
-                Log.i(TAG, "onOutputBufferAvailable, index: " + index);
-                mCounter.outputBuffers++;
-                doOutputBufferAvailable(index, info);
-            }
-
-            @Override
-            public void onError(@NonNull MediaCodec codec, @NonNull CodecException e) {
-                Log.e(TAG, "onError, codec: " + codec, e);
-                mCounter.bufferErrors++;
+    /** Returns the negotiated configuration or null if no encoder supports any of them. */
+    @Nullable
+    private EncoderConfig getEncoderConfig() {
+        if (mEncoderConfig == null && mEncoderConfigs.length > 0) {
+            // Smaller sizes requested by receivers are supported as well.
+            mEncoderConfig = EncoderConfig.negotiate(mEncoderConfigs, mMaxWidth, mMaxHeight);
+            if (mEncoderConfig == null) {
+                Log.e(TAG, "No encoder supports any of the configurations");
             }
+        }
+        return mEncoderConfig;
+    }
 
-            @Override
-            public void onOutputFormatChanged(@NonNull MediaCodec codec,
-                    @NonNull MediaFormat format) {
-                Log.i(TAG, "onOutputFormatChanged, codec: " + codec + ", format: " + format);
-
+    /**
+     * Creates and configures the encoder with the negotiated configuration, falls back to the next
+     * configuration of the chain if that fails.
+     *
+     * @return configured encoder or null if none of the configurations can be used
+     */
+    @Nullable
+    private MediaCodec createVideoStream(Handler handler) {
+        while (getEncoderConfig() != null) {
+            MediaCodec encoder = null;
+            try {
+                encoder = MediaCodec.createByCodecName(mEncoderConfig.getCodecName());
+                encoder.setCallback(mEncoderCallback, handler);
+                configureVideoEncoder(encoder, mEncoderConfig, mWidth, mHeight,
+                        mCongestionController.getBitrate());
+                return encoder;
+            } catch (IOException | CodecException | IllegalArgumentException e) {
+                // Capabilities listed by MediaCodecList don't guarantee the format is accepted.
+                Log.e(TAG, "Failed to configure video encoder for " + mEncoderConfig, e);
+                if (encoder != null) encoder.release();
+                dropEncoderConfig();
             }
-        }, handler);
+        }
+        return null;
+    }
 
-        configureVideoEncoder(encoder, mWidth, mHeight);
-        return encoder;
+    /**
+     * Drops the current configuration together with the ones preferred over it, the next call to
+     * {@link #getEncoderConfig()} negotiates one of the remaining configurations.
+     */
+    private void dropEncoderConfig() {
+        int index = Arrays.asList(mEncoderConfigs).indexOf(mEncoderConfig);
+        mEncoderConfigs = Arrays.copyOfRange(mEncoderConfigs, index + 1, mEncoderConfigs.length);
+        mEncoderConfig = null;
     }
 
     private void doOutputBufferAvailable(int index, @NonNull BufferInfo info) {
-        mHandler.removeMessages(MSG_RESUBMIT_FRAME);
+        long outputNanos = System.nanoTime();
 
         ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(index);
         if (encodedData == null) {
@@ -220,52 +401,331 @@ public class NetworkedVirtualDisplay {
         if (info.size != 0) {
             encodedData.position(info.offset);
             encodedData.limit(info.offset + info.size);
-            mLastFrameLength = encodedData.remaining();
-            if (mBuffer == null || mBuffer.length < mLastFrameLength) {
-                Log.i(TAG, "Allocating new buffer: " + mLastFrameLength);
-                mBuffer = new byte[mLastFrameLength];
+
+            int flags = info.flags;
+            if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                // Lets slow receivers drop frames nothing else depends on first.
+                flags |= EncodedFrame.getDisposableFlag(encodedData,
+                        MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mEncoderConfig.getMimeType()));
             }
-            encodedData.get(mBuffer, 0, mLastFrameLength);
-            mVideoEncoder.releaseOutputBuffer(index, false);
 
-            sendFrame(mBuffer, mLastFrameLength);
+            EncodedFrame frame;
+            if (ZERO_COPY_OUTPUT) {
+                // Output buffer is returned to the encoder once the last receiver has written it.
+                frame = mOutputBufferRecycler.wrap(encodedData, info.presentationTimeUs, flags,
+                        index);
+            } else {
+                // Frame is copied once and then shared by all receivers.
+                frame = EncodedFrame.copyOf(encodedData, info.presentationTimeUs, flags);
+                mVideoEncoder.releaseOutputBuffer(index, false);
+            }
 
-            // If nothing happens in Virtual Display we won't receive new frames. If we won't keep
-            // sending frames it could be a problem for the receiver because it needs certain
-            // number of frames in order to start decoding.
-            scheduleResendingLastFrame(1000 / FPS);
+            mTrace.beginSection("Cluster:publish");
+            mServer.onFrame(frame);
+            mTrace.endSection();
+            mStats.onFrameQueued(frame, outputNanos);
+            mTrace.event(StreamTrace.EVENT_FRAME_QUEUED, frame.size(),
+                    mServer.getReceiverCount());
+            if (mRecorder != null) {
+                mTrace.beginSection("Cluster:record");
+                mRecorder.onFrame(frame);
+                mTrace.endSection();
+                if (mRecorder.getError() != null) {
+                    stopRecording();
+                }
+            }
+            if (mRtpSender != null) {
+                mTrace.beginSection("Cluster:rtp");
+                mRtpSender.onFrame(frame);
+                mTrace.endSection();
+            }
+            frame.release();
+
+            onContentProduced();
         } else {
             Log.e(TAG, "Skipping empty buffer");
             mVideoEncoder.releaseOutputBuffer(index, false);
         }
     }
 
-    private void scheduleResendingLastFrame(long delayMs) {
-        Message msg = mHandler.obtainMessage(MSG_RESUBMIT_FRAME);
-        mHandler.sendMessageDelayed(msg, delayMs);
+    private void setRecording(boolean enabled) {
+        if (enabled == (mRecorder != null)) return;
+
+        if (enabled) {
+            EncoderConfig config = getEncoderConfig();
+            if (config == null) {
+                Log.e(TAG, "Unable to record without a video encoder");
+                return;
+            }
+            String extension = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(config.getMimeType())
+                    ? "h265" : "h264";
+            File directory = new File(mFilesDir, mPort == DEFAULT_PORT
+                    ? RECORDING_DIRECTORY : RECORDING_DIRECTORY + "_" + mPort);
+            if (mRecordingWriter == null) {
+                mRecordingWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        return new Thread(r, "RecordingWriterThread");
+                    }
+                });
+            }
+            StreamRecorder recorder = new StreamRecorder(directory, extension,
+                    RECORDING_SEGMENT_COUNT, RECORDING_SEGMENT_SIZE, RECORDING_SEGMENT_DURATION_MS,
+                    mEncoderSource, mRecordingWriter);
+            try {
+                recorder.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start recording to " + directory, e);
+                return;
+            }
+            mRecorder = recorder;
+            if (mServer.getCodecConfig() != null) {
+                mRecorder.onFrame(mServer.getCodecConfig());
+            }
+            Log.i(TAG, "Recording to " + directory);
+
+            if (mVideoEncoder == null) {
+                startCasting(mHandler);
+            } else {
+                setEncoderSuspended(false);
+            }
+        } else {
+            stopRecording();
+            if (!isStreamConsumed() && SUSPEND_WHEN_IDLE) {
+                setEncoderSuspended(true);
+            }
+        }
     }
 
-    private void sendFrame(byte[] buf, int len) {
+    private void stopRecording() {
+        if (mRecorder == null) return;
+
+        mRecorder.stop();
+        if (mRecorder.getError() != null) {
+            Log.e(TAG, "Recording failed: " + mRecorder, mRecorder.getError());
+        } else {
+            Log.i(TAG, "Recording stopped: " + mRecorder);
+        }
+        mRecorder = null;
+    }
+
+    private void setRtp(InetSocketAddress destination, int fecGroupSize) {
+        stopRtpSender();
+        if (destination == null) {
+            if (!isStreamConsumed() && SUSPEND_WHEN_IDLE) {
+                setEncoderSuspended(true);
+            }
+            return;
+        }
+
+        EncoderConfig config = getEncoderConfig();
+        if (config == null || !MediaFormat.MIMETYPE_VIDEO_AVC.equals(config.getMimeType())) {
+            Log.e(TAG, "RTP is only supported for AVC, encoder: " + config);
+            return;
+        }
+        RtpSender sender = new RtpSender(destination, RtpSender.DEFAULT_MAX_PACKET_SIZE,
+                fecGroupSize, mEncoderSource);
         try {
-            mOutputStream.write(buf, 0, len);
-            Log.i(TAG, "Bytes written: " + len);
+            sender.start();
         } catch (IOException e) {
-            mCounter.clientsDisconnected++;
-            mOutputStream = null;
-            Log.e(TAG, "Failed to write data to socket, restart casting", e);
-            restart();
+            Log.e(TAG, "Failed to open RTP socket to " + destination, e);
+            return;
+        }
+        mRtpSender = sender;
+        if (mServer.getCodecConfig() != null) {
+            mRtpSender.onFrame(mServer.getCodecConfig());
+        }
+        Log.i(TAG, "Sending RTP to " + destination + ", FEC group size: " + fecGroupSize);
+
+        if (mVideoEncoder == null) {
+            startCasting(mHandler);
+        } else {
+            setEncoderSuspended(false);
+        }
+        // Keepalives stopped when the last receiver left, the stream start is replayed first.
+        if (mIdle && !mHandler.hasMessages(MSG_SEND_KEEPALIVE)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SEND_KEEPALIVE, KEEPALIVE_INTERVAL_MS);
+        }
+    }
+
+    private void stopRtpSender() {
+        if (mRtpSender == null) return;
+
+        mRtpSender.stop();
+        Log.i(TAG, "RTP stopped: " + mRtpSender);
+        mRtpSender = null;
+    }
+
+    /** Returns true if anyone takes the encoder output: receivers, recorder or RTP. */
+    private boolean isStreamConsumed() {
+        return mServer.getReceiverCount() > 0 || mRecorder != null || mRtpSender != null;
+    }
+
+    /** Leaves idle state if needed and restarts the idle timeout. */
+    private void onContentProduced() {
+        if (mIdle) {
+            mIdle = false;
+            mHandler.removeMessages(MSG_SEND_KEEPALIVE);
+            mTrace.event(StreamTrace.EVENT_IDLE_EXITED,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mIdleSinceNanos));
+        }
+        mHandler.removeMessages(MSG_IDLE);
+        mHandler.sendEmptyMessageDelayed(MSG_IDLE, IDLE_TIMEOUT_MS);
+    }
+
+    private void onIdle() {
+        mIdle = true;
+        mIdleSinceNanos = System.nanoTime();
+        mStats.idlePeriods.incrementAndGet();
+        mTrace.event(StreamTrace.EVENT_IDLE_ENTERED);
+        // Sent right away as decoders waiting for the start of the next access unit will then
+        // output the last frame.
+        sendKeepalive();
+    }
+
+    /**
+     * Sends a keepalive to receivers, an access unit delimiter in raw format, see
+     * {@link StreamServer#sendKeepalive}. Repeated only while there are receivers, the next one
+     * to connect starts it again.
+     */
+    private void sendKeepalive() {
+        if (mServer.getReceiverCount() == 0 || mEncoderConfig == null) return;
+
+        mHandler.sendEmptyMessageDelayed(MSG_SEND_KEEPALIVE, KEEPALIVE_INTERVAL_MS);
+
+        mServer.sendKeepalive(MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mEncoderConfig.getMimeType())
+                ? HEVC_ACCESS_UNIT_DELIMITER : AVC_ACCESS_UNIT_DELIMITER);
+        mTrace.event(StreamTrace.EVENT_KEEPALIVE_SENT, mServer.getReceiverCount());
+    }
+
+    private void setEncoderBitrate(int bitrate) {
+        if (mVideoEncoder == null) return;
+
+        Log.i(TAG, "Changing encoder bitrate to " + bitrate);
+        mTrace.event(StreamTrace.EVENT_BITRATE_CHANGED, bitrate);
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        mVideoEncoder.setParameters(params);
+    }
+
+    /**
+     * Pauses or resumes the encoder without releasing it, so the virtual display surface stays
+     * attached while no receivers are connected.
+     */
+    private void setEncoderSuspended(boolean suspended) {
+        if (mVideoEncoder == null || mEncoderSuspended == suspended) return;
+
+        Log.i(TAG, (suspended ? "Suspending" : "Resuming") + " video encoder");
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        mVideoEncoder.setParameters(params);
+        mEncoderSuspended = suspended;
+    }
+
+    /**
+     * Resizes the display to the largest size any receiver prefers, bounded by the size given to
+     * the constructor, which is also used if no receiver has a preference. Receivers without a
+     * preference get whatever size the others asked for.
+     */
+    private void updateDisplaySize() {
+        StreamReceiver largest = null;
+        for (StreamReceiver receiver : mServer.getReceivers()) {
+            if (receiver.hasPreferredSize() && (largest == null
+                    || getPreferredArea(receiver) > getPreferredArea(largest))) {
+                largest = receiver;
+            }
+        }
+
+        if (largest == null) {
+            resizeDisplay(mMaxWidth, mMaxHeight, mMaxDpi);
+            return;
+        }
+        int width = alignSize(largest.getPreferredWidth(), mMaxWidth);
+        int height = alignSize(largest.getPreferredHeight(), mMaxHeight);
+        // Without a preferred density the layout stays the same, only with fewer pixels.
+        int dpi = largest.getPreferredDpi() > 0
+                ? largest.getPreferredDpi() : mMaxDpi * width / mMaxWidth;
+        resizeDisplay(width, height, dpi);
+    }
+
+    private static long getPreferredArea(StreamReceiver receiver) {
+        return (long) receiver.getPreferredWidth() * receiver.getPreferredHeight();
+    }
+
+    private static int alignSize(int size, int maxSize) {
+        return Math.max(MIN_SIZE, Math.min(size, maxSize) / SIZE_ALIGNMENT * SIZE_ALIGNMENT);
+    }
+
+    /**
+     * Resizes the virtual display and replaces the encoder with one of the new size, as encoder
+     * size can't be changed. Activities on the display only get a configuration change, receivers
+     * get new codec config followed by a key frame.
+     */
+    private void resizeDisplay(int width, int height, int dpi) {
+        if (width == mWidth && height == mHeight && dpi == mDpi) return;
+
+        Log.i(TAG, "Resizing display to " + width + "x" + height + "@" + dpi);
+        mTrace.event(StreamTrace.EVENT_DISPLAY_RESIZED, width, height);
+        mWidth = width;
+        mHeight = height;
+        mDpi = dpi;
+        if (mVirtualDisplay == null) return;  // Will be created with the new size.
+
+        if (mVideoEncoder == null) {
+            mVirtualDisplay.resize(width, height, dpi);
+            return;
+        }
+
+        boolean suspended = mEncoderSuspended;
+        Surface surface = mVirtualDisplay.getSurface();
+        mVirtualDisplay.setSurface(null);
+        mVirtualDisplay.resize(width, height, dpi);
+        if (surface != null) surface.release();
+
+        releaseVideoEncoder();
+        mEncoderSuspended = false;
+        // Stream start of the old size must not be replayed to receivers connecting later.
+        mServer.reset();
+
+        mVideoEncoder = createVideoStream(mHandler);
+        if (mVideoEncoder == null) {
+            Log.e(TAG, "No video encoder available for the new size, not casting");
+            return;
+        }
+        mOutputBufferRecycler = new OutputBufferRecycler(mVideoEncoder);
+        mVirtualDisplay.setSurface(mVideoEncoder.createInputSurface());
+        mVideoEncoder.start();
+        setEncoderSuspended(suspended);
+    }
+
+    private void requestSyncFrame() {
+        if (mVideoEncoder == null) return;
+
+        mTrace.event(StreamTrace.EVENT_SYNC_FRAME_REQUESTED);
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mVideoEncoder.setParameters(params);
+    }
+
+    private void releaseOutputBuffer(MediaCodec codec, int index) {
+        // Buffers of a stopped encoder have already been returned.
+        if (codec == mVideoEncoder) {
+            codec.releaseOutputBuffer(index, false);
         }
     }
 
     private void stopCasting() {
         Log.i(TAG, "Stopping casting...");
-        if (mServerSocket != null) {
-            try {
-                mServerSocket.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to close server socket, ignoring", e);
-            }
-            mServerSocket = null;
+        if (mHandler != null) {
+            mHandler.removeMessages(MSG_ADJUST_BITRATE);
+            mHandler.removeMessages(MSG_IDLE);
+            mHandler.removeMessages(MSG_SEND_KEEPALIVE);
+        }
+        mIdle = false;
+        stopRecording();
+        stopRtpSender();
+        if (mServer != null) {
+            mServer.reset();
         }
 
         if (mVirtualDisplay != null) {
@@ -277,22 +737,69 @@ public class NetworkedVirtualDisplay {
             mVirtualDisplay.setSurface(null);
         }
 
+        mEncoderSuspended = false;
         if (mVideoEncoder != null) {
             // Releasing encoder as stop/start didn't work well (couldn't create or reuse input
             // surface).
-            mVideoEncoder.stop();
-            mVideoEncoder.release();
-            mVideoEncoder = null;
+            releaseVideoEncoder();
         }
         Log.i(TAG, "Casting stopped");
     }
 
-    private synchronized void restart() {
-        // This method could be called from different threads when receiver has disconnected.
-        if (mHandler.hasMessages(MSG_START)) return;
+    /**
+     * Stops and releases the encoder once receivers no longer hold its output buffers. Receivers
+     * that don't write them in time are disconnected, so the transport never reads buffers of a
+     * released encoder.
+     */
+    private void releaseVideoEncoder() {
+        MediaCodec encoder = mVideoEncoder;
+        // Buffers returned from now on are not given back to the encoder, see
+        // releaseOutputBuffer().
+        mVideoEncoder = null;
+        if (!mOutputBufferRecycler.awaitReturned(OUTPUT_BUFFER_RETURN_TIMEOUT_MS)) {
+            Log.w(TAG, "Disconnecting receivers holding output buffers: " + mOutputBufferRecycler);
+            if (mServer != null) {
+                mServer.disconnectBorrowingReceivers();
+            }
+            if (!mOutputBufferRecycler.awaitReturned(OUTPUT_BUFFER_RETURN_TIMEOUT_MS)) {
+                Log.e(TAG, "Output buffers not returned: " + mOutputBufferRecycler);
+            }
+        }
+        encoder.stop();
+        encoder.release();
+    }
 
-        mHandler.sendMessage(Message.obtain(mHandler, MSG_STOP));
-        mHandler.sendMessage(Message.obtain(mHandler, MSG_START));
+    /** Called before {@link StreamServer} replays the stream start to the receiver. */
+    private void onReceiverConnected(StreamReceiver receiver) {
+        Log.i(TAG, "Receiver added: " + receiver
+                + ", receivers: " + mServer.getReceiverCount());
+        mTrace.event(StreamTrace.EVENT_RECEIVER_CONNECTED, mServer.getReceiverCount());
+
+        if (mVideoEncoder == null) {
+            startCasting(mHandler);
+        } else {
+            setEncoderSuspended(false);
+        }
+    }
+
+    private void onReceiverDisconnected(StreamReceiver receiver, IOException cause) {
+        Log.i(TAG, "Receiver removed: " + receiver
+                + ", receivers: " + mServer.getReceiverCount(), cause);
+        mTrace.event(StreamTrace.EVENT_RECEIVER_DISCONNECTED, mServer.getReceiverCount());
+
+        updateDisplaySize();
+        // Encoder is kept running, so the next receiver doesn't pay for encoder creation and
+        // virtual display surface swap.
+        if (!isStreamConsumed() && SUSPEND_WHEN_IDLE) {
+            setEncoderSuspended(true);
+        }
+    }
+
+    private void onReceiverMessage(StreamReceiver receiver, StreamProtocol.Message message) {
+        if (message.type == StreamProtocol.MESSAGE_HELLO) {
+            Log.i(TAG, "Receiver " + receiver + " prefers " + message);
+            updateDisplaySize();
+        }
     }
 
     private class NetworkThreadHandler extends Handler {
@@ -305,116 +812,178 @@ public class NetworkedVirtualDisplay {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_START:
-                    if (mServerSocket == null) {
-                        mServerSocket = openServerSocket();
+                    if (mServer == null) {
+                        mServer = openServer();
                     }
-                    Log.i(TAG, "Server socket opened");
+                    Log.i(TAG, "Listening for incoming connections on port: " + mPort);
+                    break;
 
-                    mOutputStream = waitForReceiver(mServerSocket);
-                    if (mOutputStream == null) {
-                        sendMessage(Message.obtain(this, MSG_START));
-                        break;
+                case MSG_ADJUST_BITRATE:
+                    if (mVideoEncoder != null) {
+                        mCongestionController.onSample(mServer.getReceivers());
+                        sendEmptyMessageDelayed(MSG_ADJUST_BITRATE,
+                                CongestionController.SAMPLE_INTERVAL_MS);
                     }
-                    mCounter.clientsConnected++;
+                    break;
 
-                    startCasting(this);
+                case MSG_RELEASE_OUTPUT_BUFFER:
+                    releaseOutputBuffer((MediaCodec) msg.obj, msg.arg1);
                     break;
 
-                case MSG_STOP:
-                    stopCasting();
+                case MSG_IDLE:
+                    onIdle();
                     break;
 
-                case MSG_RESUBMIT_FRAME:
-                    if (mServerSocket != null && mOutputStream != null) {
-                        Log.i(TAG, "Resending the last frame again. Buffer: " + mLastFrameLength);
-                        sendFrame(mBuffer, mLastFrameLength);
-                    }
-                    // We will keep sending last frame every second as a heartbeat.
-                    scheduleResendingLastFrame(1000L);
+                case MSG_SEND_KEEPALIVE:
+                    sendKeepalive();
+                    break;
+
+                case MSG_SET_RECORDING:
+                    setRecording(msg.arg1 != 0);
+                    break;
+
+                case MSG_SET_RTP_DESTINATION:
+                    setRtp((InetSocketAddress) msg.obj, msg.arg1);
+                    break;
+
+                case MSG_RELEASE:
+                    doRelease();
                     break;
             }
         }
     }
 
-    private static void configureVideoEncoder(MediaCodec codec, int width, int height) {
-        MediaFormat format = MediaFormat.createVideoFormat(MEDIA_FORMAT_MIMETYPE, width, height);
+    /**
+     * Returns encoder output buffers once all receivers have released the frame, and counts the
+     * buffers not returned yet, so the encoder is only released once none are in use.
+     */
+    private class OutputBufferRecycler implements EncodedFrame.Recycler {
+        private final MediaCodec mCodec;
+        private final Object mLock = new Object();
+        private int mBorrowedCount;
 
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, BITRATE);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FPS);
-        format.setInteger(MediaFormat.KEY_CAPTURE_RATE, FPS);
-        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-        format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, 1); // 1 second between I-frames
-        format.setInteger(MediaFormat.KEY_LEVEL, CodecProfileLevel.AVCLevel31);
-        format.setInteger(MediaFormat.KEY_PROFILE,
-                CodecProfileLevel.AVCProfileBaseline);
+        OutputBufferRecycler(MediaCodec codec) {
+            mCodec = codec;
+        }
 
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-    }
+        /** Wraps the output buffer without copying it, see {@link EncodedFrame#wrap}. */
+        EncodedFrame wrap(ByteBuffer data, long presentationTimeUs, int flags, int index) {
+            synchronized (mLock) {
+                mBorrowedCount++;
+            }
+            return EncodedFrame.wrap(data, presentationTimeUs, flags, this, index);
+        }
 
-    private OutputStream waitForReceiver(ServerSocket serverSocket) {
-        try {
-            Log.i(TAG, "Listening for incoming connections on port: " + PORT);
-            Socket socket = serverSocket.accept();
+        /**
+         * Waits until all wrapped buffers have been released by receivers, which happens on the
+         * transport thread, so it may be called on the network thread.
+         *
+         * @return false if some are still in use after the timeout
+         */
+        boolean awaitReturned(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            synchronized (mLock) {
+                long remaining = timeoutMs;
+                while (mBorrowedCount > 0 && remaining > 0) {
+                    try {
+                        mLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                return mBorrowedCount == 0;
+            }
+        }
 
-            Log.i(TAG, "Receiver connected: " + socket);
-            listenReceiverDisconnected(socket.getInputStream());
+        @Override
+        public void recycle(EncodedFrame frame) {
+            synchronized (mLock) {
+                mBorrowedCount--;
+                mLock.notifyAll();
+            }
+            if (Looper.myLooper() == mHandler.getLooper()) {
+                releaseOutputBuffer(mCodec, frame.getBufferIndex());
+            } else {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_RELEASE_OUTPUT_BUFFER,
+                        frame.getBufferIndex(), 0, mCodec));
+            }
+        }
 
-            return socket.getOutputStream();
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to accept connection");
-            return null;
+        @Override
+        public String toString() {
+            synchronized (mLock) {
+                return "{borrowed: " + mBorrowedCount + "}";
+            }
         }
     }
 
-    private void listenReceiverDisconnected(final InputStream inputStream) {
-        new Thread(new Runnable() {
+    private static void configureVideoEncoder(MediaCodec codec, EncoderConfig config, int width,
+            int height, int bitrate) {
+        MediaFormat format = config.createMediaFormat(width, height, bitrate, FPS);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    private StreamServer openServer() {
+        Executor executor = new Executor() {
             @Override
-            public void run() {
-                try {
-                    if (inputStream.read() == -1) throw new IOException();
-                } catch (IOException e) {
-                    Log.w(TAG, "Receiver has disconnected", e);
-                }
-                restart();
+            public void execute(@NonNull Runnable command) {
+                mHandler.post(command);
             }
-        }).start();
-    }
+        };
+        StreamServer server = new StreamServer(mPort, mWireFormat, mEncoderSource, executor,
+                new StreamServer.Listener() {
+                    @Override
+                    public void onReceiverConnected(StreamReceiver receiver) {
+                        NetworkedVirtualDisplay.this.onReceiverConnected(receiver);
+                    }
+
+                    @Override
+                    public void onReceiverDisconnected(StreamReceiver receiver,
+                            IOException cause) {
+                        NetworkedVirtualDisplay.this.onReceiverDisconnected(receiver, cause);
+                    }
 
-    private static ServerSocket openServerSocket() {
+                    @Override
+                    public void onTransportError(IOException e) {
+                        Log.e(TAG, "Failed to accept connection", e);
+                    }
+
+                    @Override
+                    public void onReceiverMessage(StreamReceiver receiver,
+                            StreamProtocol.Message message) {
+                        NetworkedVirtualDisplay.this.onReceiverMessage(receiver, message);
+                    }
+                }, mStats);
         try {
-            return new ServerSocket(PORT);
+            server.start();
         } catch (IOException e) {
             Log.e(TAG, "Failed to create server socket", e);
             throw new RuntimeException(e);
         }
+        return server;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println(this);
+        mStats.dump(writer);
+        mTrace.dump(writer);
     }
 
     @Override
     public String toString() {
         return getClass() + "{"
-                + mServerSocket
-                +", receiver connected: " + (mOutputStream != null)
+                + "server: " + mServer
                 +", encoder: " + mVideoEncoder
+                +", encoderConfig: " + mEncoderConfig
+                +", encoderSuspended: " + mEncoderSuspended
+                +", idle: " + mIdle
                 +", virtualDisplay" + mVirtualDisplay
+                +", size: " + mWidth + "x" + mHeight + "@" + mDpi
+                +", congestionController: " + mCongestionController
+                +", recorder: " + mRecorder
+                +", rtpSender: " + mRtpSender
                 + "}";
     }
-
-    private static class DebugCounter {
-        long outputBuffers;
-        long bufferErrors;
-        long clientsConnected;
-        long clientsDisconnected;
-
-        @Override
-        public String toString() {
-            return getClass().getSimpleName() + "{"
-                    + "outputBuffers=" + outputBuffers
-                    + ", bufferErrors=" + bufferErrors
-                    + ", clientsConnected=" + clientsConnected
-                    + ", clientsDisconnected= " + clientsDisconnected
-                    + "}";
-        }
-    }
 }
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the encoded AVC stream as RTP over UDP to a single destination, so a lost packet only
+ * affects the frame it belongs to instead of delaying every following frame as with TCP.
+ * <p>
+ * Access units are packetized as described in RFC 6184 (non-interleaved mode): NAL units that fit
+ * into a packet are sent as single NAL unit packets, larger ones are split into FU-A fragments.
+ * The marker bit is set on the last packet of every access unit, timestamps use the 90 kHz clock.
+ * Codec config is sent in front of every key frame, so a receiver can start decoding at any key
+ * frame. HEVC (RFC 7798) is not supported.
+ * <p>
+ * With a non-zero FEC group size, an XOR parity packet with payload type {@link #PAYLOAD_TYPE_FEC}
+ * follows every group of media packets, which lets the receiver restore a single lost packet per
+ * group. Groups are closed at the end of every access unit, so recovery never waits for the next
+ * frame. Parity packets have their own sequence numbers and carry {@link #FEC_HEADER_LENGTH}
+ * bytes in front of the XOR of the media payloads:
+ * <pre>
+ *   0  uint16  sequence number of the first protected packet
+ *   2  uint8   number of protected packets
+ *   3  uint8   XOR of the second RTP header byte (marker and payload type)
+ *   4  uint32  XOR of the timestamps
+ *   8  uint16  XOR of the payload lengths
+ *   10 uint16  reserved, 0
+ * </pre>
+ * Payloads shorter than the longest one in the group are padded with zeros.
+ * <p>
+ * The socket is non-blocking, packets that don't fit into the socket send buffer are dropped.
+ * Not thread safe, all methods should be called on the source thread.
+ */
+class RtpSender implements FrameSink {
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 12;
+    /** Dynamic payload type of the H.264 stream. */
+    static final int PAYLOAD_TYPE_H264 = 96;
+    /** Dynamic payload type of the parity packets. */
+    static final int PAYLOAD_TYPE_FEC = 127;
+    static final int CLOCK_RATE = 90000;
+    static final int NAL_TYPE_FU_A = 28;
+    static final int FU_A_HEADER_LENGTH = 2;
+    static final int FEC_HEADER_LENGTH = 12;
+    /** Keeps packets below the usual 1500 bytes Ethernet MTU including IP and UDP headers. */
+    static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+
+    private final InetSocketAddress mDestination;
+    private final int mMaxPacketSize;
+    private final int mFecGroupSize;
+    private final FrameSource mSource;
+    private final int mSsrc = new Random().nextInt();
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_LENGTH);
+    private final ByteBuffer mFuHeader = ByteBuffer.allocate(FU_A_HEADER_LENGTH);
+    private final ByteBuffer[] mPacket = new ByteBuffer[3];
+    private final ByteBuffer mFecHeader = ByteBuffer.allocate(FEC_HEADER_LENGTH);
+    private final ByteBuffer mFecPayload;
+    private final ByteBuffer[] mFecPacket = new ByteBuffer[3];
+
+    private DatagramChannel mChannel;
+    private EncodedFrame mCodecConfig;
+    private boolean mAwaitingKeyFrame = true;
+    private int mSequenceNumber = new Random().nextInt() & 0xffff;
+    private int mFecSequenceNumber;
+    private int mTimestamp;
+
+    // Parity of the current FEC group.
+    private int mFecFirstSequenceNumber;
+    private int mFecCount;
+    private int mFecMarkerPayloadType;
+    private int mFecTimestamp;
+    private int mFecLength;
+    private int mFecPayloadLength;
+
+    private long mFramesSent;
+    private long mFramesSkipped;
+    private long mPacketsSent;
+    private long mPacketsDropped;
+    private long mFecPacketsSent;
+    private long mBytesSent;
+    private IOException mLastError;
+
+    /**
+     * @param maxPacketSize maximum size of the UDP payload, see {@link #DEFAULT_MAX_PACKET_SIZE}
+     * @param fecGroupSize number of media packets protected by one parity packet, 0 disables FEC
+     */
+    RtpSender(InetSocketAddress destination, int maxPacketSize, int fecGroupSize,
+            FrameSource source) {
+        mDestination = destination;
+        mMaxPacketSize = maxPacketSize;
+        mFecGroupSize = fecGroupSize;
+        mSource = source;
+        mFecPayload = ByteBuffer.allocate(maxPacketSize - HEADER_LENGTH);
+        mPacket[0] = mHeader;
+        mPacket[1] = mFuHeader;
+        mFecPacket[0] = mHeader;
+        mFecPacket[1] = mFecHeader;
+    }
+
+    /** Opens the socket and waits for the next key frame. */
+    void start() throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.connect(mDestination);
+        mAwaitingKeyFrame = true;
+        mSource.requestSyncFrame();
+    }
+
+    /** Closes the socket, the sender can be started again later. */
+    void stop() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Ignore, nothing else can be done about it.
+            }
+            mChannel = null;
+        }
+        if (mCodecConfig != null) {
+            mCodecConfig.release();
+            mCodecConfig = null;
+        }
+    }
+
+    /**
+     * Packetizes and sends the frame. Codec config is kept to be sent in front of every key
+     * frame, repeated frames and keepalives are ignored.
+     */
+    @Override
+    public void onFrame(EncodedFrame frame) {
+        if (frame.isCodecConfig()) {
+            if (mCodecConfig != null) mCodecConfig.release();
+            mCodecConfig = frame.isBorrowed()
+                    ? EncodedFrame.copyOf(frame.data(), frame.getPresentationTimeUs(),
+                            frame.getFlags())
+                    : frame.retain();
+            return;
+        }
+        if (frame.isRepeated() || frame.isKeepalive() || mChannel == null) return;
+
+        if (frame.isKeyFrame() && mCodecConfig != null) {
+            mAwaitingKeyFrame = false;
+        }
+        if (mAwaitingKeyFrame) {
+            mFramesSkipped++;
+            return;
+        }
+
+        mTimestamp = (int) (frame.getPresentationTimeUs() * CLOCK_RATE
+                / TimeUnit.SECONDS.toMicros(1));
+        if (frame.isKeyFrame()) {
+            sendAccessUnit(mCodecConfig.data(), false /* last */);
+        }
+        sendAccessUnit(frame.data(), true /* last */);
+        if (mFecCount > 0) {
+            sendFecPacket();
+        }
+        mFramesSent++;
+    }
+
+    /** Returns the last send error or null, sending continues after errors. */
+    IOException getLastError() {
+        return mLastError;
+    }
+
+    /** Returns the number of media and parity packets sent. */
+    long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    /** Returns the number of parity packets sent, included in {@link #getPacketsSent()}. */
+    long getFecPacketsSent() {
+        return mFecPacketsSent;
+    }
+
+    /** Returns the number of packets dropped because the socket buffer was full. */
+    long getPacketsDropped() {
+        return mPacketsDropped;
+    }
+
+    /**
+     * Sends all NAL units of the Annex-B data, sets the marker bit on the last packet if
+     * {@code last} is set.
+     */
+    private void sendAccessUnit(ByteBuffer data, boolean last) {
+        int limit = data.limit();
+        int start = findStartCode(data, data.position(), limit);
+        while (start < limit) {
+            int nalStart = start + 3;
+            int next = findStartCode(data, nalStart, limit);
+            int nalEnd = next;
+            // Zero bytes in front of a start code belong to the start code.
+            while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) nalEnd--;
+            if (nalEnd > nalStart) {
+                data.limit(nalEnd).position(nalStart);
+                sendNalUnit(data, last && next == limit);
+                data.limit(limit);
+            }
+            start = next;
+        }
+    }
+
+    /** Sends NAL unit between position and limit of {@code nal}, without start code. */
+    private void sendNalUnit(ByteBuffer nal, boolean marker) {
+        int maxPayload = mMaxPacketSize - HEADER_LENGTH;
+        if (nal.remaining() <= maxPayload) {
+            mFuHeader.clear().limit(0);
+            sendPacket(nal, marker);
+            return;
+        }
+
+        int nalHeader = nal.get() & 0xff;
+        int end = nal.limit();
+        boolean first = true;
+        while (nal.position() < end) {
+            int fragmentEnd = Math.min(end, nal.position() + maxPayload - FU_A_HEADER_LENGTH);
+            boolean lastFragment = fragmentEnd == end;
+            mFuHeader.clear();
+            mFuHeader.put((byte) ((nalHeader & 0xe0) | NAL_TYPE_FU_A));
+            mFuHeader.put((byte) ((first ? 0x80 : 0) | (lastFragment ? 0x40 : 0)
+                    | (nalHeader & 0x1f)));
+            mFuHeader.flip();
+            nal.limit(fragmentEnd);
+            sendPacket(nal, marker && lastFragment);
+            nal.position(fragmentEnd).limit(end);
+            first = false;
+        }
+    }
+
+    /** Sends a media packet with the FU header prepared in {@link #mFuHeader}. */
+    private void sendPacket(ByteBuffer payload, boolean marker) {
+        int markerPayloadType = (marker ? 0x80 : 0) | PAYLOAD_TYPE_H264;
+        int sequenceNumber = mSequenceNumber;
+        mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+        putHeader(markerPayloadType, sequenceNumber, mTimestamp);
+        if (mFecGroupSize > 0) {
+            addToFecGroup(payload, markerPayloadType, sequenceNumber, mTimestamp);
+        }
+
+        int position = payload.position();
+        mPacket[2] = payload;
+        write(mPacket, HEADER_LENGTH + mFuHeader.remaining() + payload.remaining());
+        payload.position(position);
+
+        if (mFecGroupSize > 0 && mFecCount == mFecGroupSize) {
+            sendFecPacket();
+        }
+    }
+
+    private void addToFecGroup(ByteBuffer payload, int markerPayloadType, int sequenceNumber,
+            int timestamp) {
+        if (mFecCount == 0) {
+            mFecFirstSequenceNumber = sequenceNumber;
+        }
+        mFecCount++;
+        mFecMarkerPayloadType ^= markerPayloadType;
+        mFecTimestamp ^= timestamp;
+
+        int length = mFuHeader.remaining() + payload.remaining();
+        mFecLength ^= length;
+        int offset = 0;
+        for (int i = mFuHeader.position(); i < mFuHeader.limit(); i++) {
+            xorFecPayload(offset++, mFuHeader.get(i));
+        }
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            xorFecPayload(offset++, payload.get(i));
+        }
+        mFecPayloadLength = Math.max(mFecPayloadLength, length);
+    }
+
+    private void xorFecPayload(int offset, byte value) {
+        mFecPayload.put(offset, (byte) (mFecPayload.get(offset) ^ value));
+    }
+
+    private void sendFecPacket() {
+        putHeader(PAYLOAD_TYPE_FEC, mFecSequenceNumber, mTimestamp);
+        mFecSequenceNumber = (mFecSequenceNumber + 1) & 0xffff;
+        mFecHeader.clear();
+        mFecHeader.putShort((short) mFecFirstSequenceNumber);
+        mFecHeader.put((byte) mFecCount);
+        mFecHeader.put((byte) mFecMarkerPayloadType);
+        mFecHeader.putInt(mFecTimestamp);
+        mFecHeader.putShort((short) mFecLength);
+        mFecHeader.putShort((short) 0);
+        mFecHeader.flip();
+        mFecPayload.clear().limit(mFecPayloadLength);
+        mFecPacket[2] = mFecPayload;
+        if (write(mFecPacket, HEADER_LENGTH + FEC_HEADER_LENGTH + mFecPayloadLength)) {
+            mFecPacketsSent++;
+        }
+
+        mFecPayload.clear();
+        for (int i = 0; i < mFecPayloadLength; i++) {
+            mFecPayload.put(i, (byte) 0);
+        }
+        mFecCount = 0;
+        mFecMarkerPayloadType = 0;
+        mFecTimestamp = 0;
+        mFecLength = 0;
+        mFecPayloadLength = 0;
+    }
+
+    private void putHeader(int markerPayloadType, int sequenceNumber, int timestamp) {
+        mHeader.clear();
+        mHeader.put((byte) (VERSION << 6));
+        mHeader.put((byte) markerPayloadType);
+        mHeader.putShort((short) sequenceNumber);
+        mHeader.putInt(timestamp);
+        mHeader.putInt(mSsrc);
+        mHeader.flip();
+    }
+
+    /** Writes the datagram, returns false if it has been dropped. */
+    private boolean write(ByteBuffer[] packet, int length) {
+        try {
+            if (mChannel.write(packet) == length) {
+                mPacketsSent++;
+                mBytesSent += length;
+                return true;
+            }
+        } catch (IOException e) {
+            // E.g. port unreachable while the receiver is not running yet.
+            mLastError = e;
+        }
+        mPacketsDropped++;
+        return false;
+    }
+
+    /** Returns the index of the next {@code 00 00 01} start code or {@code limit}. */
+    private static int findStartCode(ByteBuffer data, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "destination: " + mDestination
+                + ", fecGroupSize: " + mFecGroupSize
+                + ", awaitingKeyFrame: " + mAwaitingKeyFrame
+                + ", framesSent: " + mFramesSent
+                + ", framesSkipped: " + mFramesSkipped
+                + ", packetsSent: " + mPacketsSent
+                + ", packetsDropped: " + mPacketsDropped
+                + ", fecPacketsSent: " + mFecPacketsSent
+                + ", bytesSent: " + mBytesSent
+                + ", lastError: " + mLastError
+                + "}";
+    }
+}
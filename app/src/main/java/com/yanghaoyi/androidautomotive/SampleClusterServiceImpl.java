@@ -33,11 +33,14 @@ import com.yanghaoyi.aosp.car.cluster.ClusterActivityState;
 import com.yanghaoyi.aosp.car.cluster.renderer.InstrumentClusterRenderingService;
 import com.yanghaoyi.aosp.car.cluster.renderer.NavigationRenderer;
 import com.yanghaoyi.aosp.car.navigation.CarNavigationInstrumentCluster;
+import com.yanghaoyi.aosp.car.navigation.CarNavigationState;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 
+import static android.content.Intent.FLAG_ACTIVITY_MULTIPLE_TASK;
 import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
 import static java.lang.Integer.parseInt;
 
@@ -78,7 +81,7 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
 
                     @Override
                     public void onDisplayRemoved(int displayId) {
-                        Log.w(TAG, "Cluster display has been removed");
+                        Log.w(TAG, "Cluster display has been removed, displayId: " + displayId);
                     }
 
                     @Override
@@ -92,7 +95,8 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
         ActivityOptions options = ActivityOptions.makeBasic();
         options.setLaunchDisplayId(displayId);
         Intent intent = new Intent(this, MainClusterActivity.class);
-        intent.setFlags(FLAG_ACTIVITY_NEW_TASK);
+        // Every cluster display gets its own task, instead of moving the existing one.
+        intent.setFlags(FLAG_ACTIVITY_NEW_TASK | FLAG_ACTIVITY_MULTIPLE_TASK);
         startActivity(intent, options.toBundle());
     }
 
@@ -108,6 +112,7 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
     public void onDestroy() {
         super.onDestroy();
         Log.w(TAG, "onDestroy");
+        mDisplayProvider.release();
     }
 
     void registerListener(Listener listener) {
@@ -118,6 +123,18 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
         mListener = null;
     }
 
+    @Override
+    protected boolean isNavigationEventCoalescingEnabled() {
+        // Only the latest distance to turn matters, stale updates are not worth rendering.
+        return true;
+    }
+
+    @Override
+    protected boolean isNavigationRendererThreadEnabled() {
+        // The renderer below only logs, it never touches views.
+        return true;
+    }
+
     //初始化CarNavigationInstrumentCluster仪表转向标信息
     @Override
     protected NavigationRenderer getNavigationRenderer() {
@@ -143,6 +160,11 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
                 }
                 Log.i(TAG, "onEvent(" + eventType + ", " + bundleSummary + ")");
             }
+
+            @Override
+            public void onNavigationStateChanged(CarNavigationState state) {
+                Log.i(TAG, "onNavigationStateChanged(" + state + ")");
+            }
         };
 
         Log.i(TAG, "createNavigationRenderer, returns: " + navigationRenderer);
@@ -168,7 +190,8 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
 
             if (args == null || args.length == 0) {
                 writer.println("* dump " + getClass().getCanonicalName() + " *");
-                writer.println("DisplayProvider: " + mDisplayProvider);
+                writer.print("DisplayProvider: ");
+                mDisplayProvider.dump(writer);
             }
         }
     }
@@ -249,6 +272,38 @@ public class SampleClusterServiceImpl extends InstrumentClusterRenderingService
                 } else {
                     Log.i(TAG, "wrong format, expected: category left top right bottom");
                 }
+                break;
+            }
+
+            case "setStreamTrace": {
+                if (args.length > 1) {
+                    mDisplayProvider.setStreamTraceEnabled(Boolean.parseBoolean(args[1]));
+                } else {
+                    Log.i(TAG, "Not enough arguments, expected: true|false");
+                }
+                break;
+            }
+
+            case "setStreamRecording": {
+                if (args.length > 1) {
+                    mDisplayProvider.setStreamRecordingEnabled(Boolean.parseBoolean(args[1]));
+                } else {
+                    Log.i(TAG, "Not enough arguments, expected: true|false");
+                }
+                break;
+            }
+
+            case "setStreamRtp": {
+                if (args.length > 2) {
+                    mDisplayProvider.setStreamRtpDestination(
+                            new InetSocketAddress(args[1], parseInt(args[2])),
+                            args.length > 3 ? parseInt(args[3]) : 0);
+                } else if (args.length > 1 && "off".equals(args[1])) {
+                    mDisplayProvider.setStreamRtpDestination(null, 0);
+                } else {
+                    Log.i(TAG, "Not enough arguments, expected: host port [fecGroupSize] | off");
+                }
+                break;
             }
         }
     }
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Non-blocking transport for {@link NetworkedVirtualDisplay}.
+ * <p>
+ * Accepting new receivers, writing queued frames and detecting disconnected receivers are all
+ * multiplexed on a single {@link Selector} thread. Frames are published from any thread and never
+ * block the publisher, slow receivers only fill their own queue (see {@link StreamReceiver}).
+ * <p>
+ * This class has no Android dependencies, all events are reported through {@link Listener} on the
+ * transport thread.
+ */
+class SelectorTransport {
+    // Enough to fill the queue of a receiver with copies of borrowed frames.
+    private static final int MAX_POOLED_COPIES = 8;
+
+    interface Listener {
+        /** Called when new receiver has connected. */
+        void onReceiverConnected(StreamReceiver receiver);
+
+        /**
+         * Called when receiver has disconnected.
+         *
+         * @param cause I/O error that caused disconnection or null if receiver closed connection
+         */
+        void onReceiverDisconnected(StreamReceiver receiver, IOException cause);
+
+        /** Called when transport failed to accept a connection, transport keeps running. */
+        void onTransportError(IOException e);
+
+        /** Called for every message received from a receiver, see {@link StreamProtocol}. */
+        void onReceiverMessage(StreamReceiver receiver, StreamProtocol.Message message);
+    }
+
+    private final int mPort;
+    private final int mWireFormat;
+    private final Listener mListener;
+    private final StreamStats mStats;
+    private final DirectBufferPool mCopyPool = new DirectBufferPool(MAX_POOLED_COPIES);
+    private final List<StreamReceiver> mReceivers = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<StreamReceiver> mPendingWrites =
+            new ConcurrentLinkedQueue<>();
+    // Accessed only from the transport thread.
+    private final List<StreamProtocol.Message> mMessages = new ArrayList<>();
+
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+    private volatile boolean mClosed;
+    private volatile boolean mDisconnectBorrowingReceivers;
+
+    /**
+     * @param wireFormat {@link StreamProtocol#WIRE_FORMAT_RAW} or
+     *                   {@link StreamProtocol#WIRE_FORMAT_FRAMED}
+     */
+    SelectorTransport(int port, int wireFormat, Listener listener, StreamStats stats) {
+        mPort = port;
+        mWireFormat = wireFormat;
+        mListener = listener;
+        mStats = stats;
+    }
+
+    /**
+     * Opens server socket and starts transport thread.
+     *
+     * @throws IllegalStateException thrown if transport was already started
+     */
+    void start() throws IOException {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mPort));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "NetworkSelectorThread");
+        mThread.start();
+    }
+
+    /** Stops transport thread and closes all connections. */
+    void close() {
+        mClosed = true;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Disconnects all receivers still holding frames borrowed from the encoder, so their buffers
+     * are returned before the encoder is released. Receivers are closed on the transport thread
+     * some time after this call, they may connect again.
+     */
+    void disconnectBorrowingReceivers() {
+        mDisconnectBorrowingReceivers = true;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Queues frame to all connected receivers, every receiver retains its own reference.
+     * <p>
+     * Frames borrowed from the encoder are only given to receivers that keep up with the stream,
+     * receivers that still have a backlog get a single pooled copy shared among them, so a slow
+     * receiver can never hold encoder output buffers for long. Receivers waiting for a key frame
+     * skip all frames up to it, see {@link StreamReceiver#isAwaitingKeyFrame()}, receivers
+     * that have not been started yet skip all frames, see {@link StreamReceiver#isStarted()}.
+     *
+     * @return number of receivers that dropped a frame others depend on and skip to the next key
+     *         frame now, see {@link StreamReceiver#offer}
+     */
+    int publish(EncodedFrame frame) {
+        int keyFrameNeeded = 0;
+        EncodedFrame copy = null;
+        frame.markQueued(System.nanoTime());
+        for (StreamReceiver receiver : mReceivers) {
+            if (!receiver.isStarted()) continue;
+            if (receiver.isAwaitingKeyFrame()) {
+                if (frame.isKeyFrame()) {
+                    receiver.setAwaitingKeyFrame(false);
+                } else if (!frame.isCodecConfig()) {
+                    continue;
+                }
+            }
+
+            EncodedFrame frameToSend = frame;
+            if (frame.isBorrowed() && receiver.hasBacklog()) {
+                if (copy == null) {
+                    copy = EncodedFrame.copyInto(mCopyPool.acquire(frame.size()), frame.data(),
+                            frame.getPresentationTimeUs(), frame.getFlags(), mCopyPool);
+                    copy.setHeader(frame.header());
+                    copy.markQueued(frame.getQueuedAtNanos());
+                }
+                frameToSend = copy;
+            }
+            if (!send(receiver, frameToSend) && receiver.isAwaitingKeyFrame()) {
+                keyFrameNeeded++;
+            }
+        }
+        if (copy != null) {
+            copy.release();
+        }
+        return keyFrameNeeded;
+    }
+
+    /**
+     * Queues frame to a single receiver.
+     *
+     * @return false if receiver dropped the frame
+     */
+    boolean send(StreamReceiver receiver, EncodedFrame frame) {
+        frame.markQueued(System.nanoTime());
+        if (!receiver.offer(frame)) return false;
+
+        mPendingWrites.add(receiver);
+        mSelector.wakeup();
+        return true;
+    }
+
+    /**
+     * Returns port the server socket is bound to, useful when created with port 0, or -1 if not
+     * started yet.
+     */
+    int getLocalPort() {
+        return mServerChannel != null ? mServerChannel.socket().getLocalPort() : -1;
+    }
+
+    List<StreamReceiver> getReceivers() {
+        return mReceivers;
+    }
+
+    int getReceiverCount() {
+        return mReceivers.size();
+    }
+
+    private void runLoop() {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                if (mDisconnectBorrowingReceivers) {
+                    mDisconnectBorrowingReceivers = false;
+                    for (StreamReceiver receiver : mReceivers) {
+                        if (receiver.hasBorrowedFrames()) {
+                            disconnect(receiver, new IOException("Encoder released"));
+                        }
+                    }
+                }
+                flushPendingWrites();
+
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        handleReceiverKey(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mListener.onTransportError(e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = mServerChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            mListener.onTransportError(e);
+            return;
+        }
+
+        StreamReceiver receiver = new StreamReceiver(channel, mWireFormat, mStats);
+        try {
+            channel.register(mSelector, SelectionKey.OP_READ, receiver);
+        } catch (IOException e) {
+            receiver.close();
+            mListener.onTransportError(e);
+            return;
+        }
+        mReceivers.add(receiver);
+        mListener.onReceiverConnected(receiver);
+    }
+
+    private void handleReceiverKey(SelectionKey key) {
+        StreamReceiver receiver = (StreamReceiver) key.attachment();
+        try {
+            if (key.isReadable()) {
+                boolean open;
+                try {
+                    open = receiver.read(mMessages);
+                    for (StreamProtocol.Message message : mMessages) {
+                        mListener.onReceiverMessage(receiver, message);
+                    }
+                } finally {
+                    mMessages.clear();
+                }
+                if (!open) {
+                    disconnect(receiver, null);
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable() && receiver.write()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            disconnect(receiver, e);
+        }
+    }
+
+    private void flushPendingWrites() {
+        StreamReceiver receiver;
+        while ((receiver = mPendingWrites.poll()) != null) {
+            SelectionKey key = receiver.getChannel().keyFor(mSelector);
+            if (key == null || !key.isValid()) continue;
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) continue;  // Already waiting.
+
+            try {
+                if (!receiver.write()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                disconnect(receiver, e);
+            }
+        }
+    }
+
+    private void disconnect(StreamReceiver receiver, IOException cause) {
+        if (!receiver.close()) return;
+
+        mReceivers.remove(receiver);
+        mListener.onReceiverDisconnected(receiver, cause);
+    }
+
+    private void shutdown() {
+        for (StreamReceiver receiver : mReceivers) {
+            disconnect(receiver, null);
+        }
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            // Ignore, nothing else can be done about it.
+        }
+    }
+}
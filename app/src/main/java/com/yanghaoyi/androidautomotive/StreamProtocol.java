@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire formats used by {@link NetworkedVirtualDisplay} to send the encoded stream.
+ * <p>
+ * {@link #WIRE_FORMAT_RAW} sends plain Annex-B access units back to back, exactly as they come out
+ * of the encoder. {@link #WIRE_FORMAT_FRAMED} prefixes every access unit with a header, all fields
+ * are big-endian:
+ * <pre>
+ *   int   magic              'CLST'
+ *   byte  version            {@link #VERSION}
+ *   byte  flags              {@link #FLAG_KEY_FRAME}, {@link #FLAG_CODEC_CONFIG},
+ *                            {@link #FLAG_KEEPALIVE}, {@link #FLAG_PONG}, {@link #FLAG_REPLAYED}
+ *   short headerLength       length of the header including this field, payload starts after it
+ *   int   sequenceNumber     incremented for every live frame sent, gaps mean dropped frames
+ *   long  presentationTimeUs presentation time reported by the encoder
+ *   int   payloadLength      length of the access unit following the header
+ * </pre>
+ * Receivers must skip any header bytes beyond the fields they know, newer versions may only append
+ * fields to the header.
+ * <p>
+ * A newly connected receiver first gets the cached codec config and last key frame with
+ * {@link #FLAG_REPLAYED}. Live frames are then skipped up to the next key frame, so the sequence
+ * number of the first live frame is expected to jump ahead and numbering starts over with it.
+ * Frames skipped after {@link #MESSAGE_KEY_FRAME_REQUEST} or {@link #MESSAGE_LOSS_REPORT} leave a
+ * gap in the same way.
+ * <p>
+ * In either wire format receivers may send messages upstream, prefixed with a message header:
+ * <pre>
+ *   int   magic              'CLST'
+ *   byte  version            {@link #VERSION}
+ *   byte  type               one of the MESSAGE_ constants
+ *   short length             length of the message including this header
+ * </pre>
+ * followed by type specific fields. Messages of unknown type are skipped. Anything else than valid
+ * messages closes the connection in the framed format and is ignored in the raw format.
+ * <p>
+ * {@link #MESSAGE_HELLO} is sent right after connecting by receivers that prefer a display size
+ * other than the default one:
+ * <pre>
+ *   int   width              preferred display width in pixels
+ *   int   height             preferred display height in pixels
+ *   int   dpi                preferred display density, 0 to scale the default density
+ * </pre>
+ * {@link #MESSAGE_KEY_FRAME_REQUEST} has no fields, it asks for a key frame because the receiver
+ * can't decode the stream anymore. Frames up to the next key frame are not sent to it.
+ * <p>
+ * {@link #MESSAGE_LOSS_REPORT} reports frames missing in the framed format, with the same effect:
+ * <pre>
+ *   int   sequenceNumber     sequence number of the first missing frame
+ *   int   count              number of missing frames
+ * </pre>
+ * {@link #MESSAGE_PING} is answered with a header with {@link #FLAG_PONG} in the framed format:
+ * <pre>
+ *   long  timestampUs        receiver time, echoed in presentationTimeUs of the answer
+ *   int   rttUs              round trip time the receiver measured last, 0 if not known yet
+ * </pre>
+ */
+final class StreamProtocol {
+    static final int WIRE_FORMAT_RAW = 0;
+    static final int WIRE_FORMAT_FRAMED = 1;
+
+    static final int MAGIC = 0x434C5354;  // "CLST"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 24;
+
+    static final int FLAG_KEY_FRAME = 1;
+    static final int FLAG_CODEC_CONFIG = 1 << 1;
+    /**
+     * Header without payload sent while the display is idle. It doesn't consume a sequence number,
+     * it carries the sequence number of the next frame.
+     */
+    static final int FLAG_KEEPALIVE = 1 << 2;
+    /**
+     * Header without payload answering {@link #MESSAGE_PING}, doesn't consume a sequence number
+     * either.
+     */
+    static final int FLAG_PONG = 1 << 3;
+    /**
+     * Frame sent again from the cache to a newly connected receiver. It doesn't consume a sequence
+     * number, it carries the sequence number of the last live frame.
+     */
+    static final int FLAG_REPLAYED = 1 << 4;
+
+    static final int MESSAGE_HEADER_LENGTH = 8;
+    static final int MESSAGE_HELLO = 1;
+    static final int MESSAGE_KEY_FRAME_REQUEST = 2;
+    static final int MESSAGE_LOSS_REPORT = 3;
+    static final int MESSAGE_PING = 4;
+    private static final int HELLO_LENGTH = MESSAGE_HEADER_LENGTH + 12;
+    private static final int LOSS_REPORT_LENGTH = MESSAGE_HEADER_LENGTH + 8;
+    private static final int PING_LENGTH = MESSAGE_HEADER_LENGTH + 12;
+
+    private StreamProtocol() {}
+
+    /** Creates frame header for the given frame. */
+    static ByteBuffer createHeader(EncodedFrame frame, int sequenceNumber) {
+        return createHeader(frame, toProtocolFlags(frame), sequenceNumber);
+    }
+
+    /** Creates frame header for a cached frame, see {@link #FLAG_REPLAYED}. */
+    static ByteBuffer createReplayedHeader(EncodedFrame frame, int sequenceNumber) {
+        return createHeader(frame, toProtocolFlags(frame) | FLAG_REPLAYED, sequenceNumber);
+    }
+
+    private static ByteBuffer createHeader(EncodedFrame frame, int flags, int sequenceNumber) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) flags);
+        header.putShort((short) HEADER_LENGTH);
+        header.putInt(sequenceNumber);
+        header.putLong(frame.getPresentationTimeUs());
+        header.putInt(frame.size());
+        header.flip();
+        return header;
+    }
+
+    /** Creates header answering {@link #MESSAGE_PING}, see {@link #FLAG_PONG}. */
+    static ByteBuffer createPongHeader(long timestampUs, int sequenceNumber) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) FLAG_PONG);
+        header.putShort((short) HEADER_LENGTH);
+        header.putInt(sequenceNumber);
+        header.putLong(timestampUs);
+        header.putInt(0);
+        header.flip();
+        return header;
+    }
+
+    private static int toProtocolFlags(EncodedFrame frame) {
+        int flags = 0;
+        if (frame.isKeyFrame()) flags |= FLAG_KEY_FRAME;
+        if (frame.isCodecConfig()) flags |= FLAG_CODEC_CONFIG;
+        if (frame.isKeepalive()) flags |= FLAG_KEEPALIVE;
+        return flags;
+    }
+
+    /** Header fields decoded by {@link #readHeader}. */
+    static class Header {
+        int version;
+        int flags;
+        int headerLength;
+        int sequenceNumber;
+        long presentationTimeUs;
+        int payloadLength;
+
+        boolean isKeyFrame() {
+            return (flags & FLAG_KEY_FRAME) != 0;
+        }
+
+        boolean isCodecConfig() {
+            return (flags & FLAG_CODEC_CONFIG) != 0;
+        }
+
+        boolean isKeepalive() {
+            return (flags & FLAG_KEEPALIVE) != 0;
+        }
+
+        boolean isPong() {
+            return (flags & FLAG_PONG) != 0;
+        }
+
+        boolean isReplayed() {
+            return (flags & FLAG_REPLAYED) != 0;
+        }
+    }
+
+    /**
+     * Reads header from the buffer, on success the buffer is positioned at the start of the
+     * payload.
+     *
+     * @return false if the buffer doesn't contain a complete header yet, buffer is not changed
+     * @throws IllegalArgumentException if the buffer doesn't start with a valid header
+     */
+    static boolean readHeader(ByteBuffer buffer, Header out) {
+        if (buffer.remaining() < HEADER_LENGTH) return false;
+
+        int start = buffer.position();
+        if (buffer.getInt(start) != MAGIC) {
+            throw new IllegalArgumentException("Bad magic: " + Integer.toHexString(
+                    buffer.getInt(start)));
+        }
+        int headerLength = buffer.getShort(start + 6) & 0xffff;
+        if (headerLength < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Bad header length: " + headerLength);
+        }
+        if (buffer.remaining() < headerLength) return false;
+
+        out.version = buffer.get(start + 4) & 0xff;
+        out.flags = buffer.get(start + 5) & 0xff;
+        out.headerLength = headerLength;
+        out.sequenceNumber = buffer.getInt(start + 8);
+        out.presentationTimeUs = buffer.getLong(start + 12);
+        out.payloadLength = buffer.getInt(start + 20);
+        buffer.position(start + headerLength);
+        return true;
+    }
+
+    /** Upstream message decoded by {@link #readMessage}. */
+    static class Message {
+        final int type;
+        // MESSAGE_HELLO
+        int width;
+        int height;
+        int dpi;
+        // MESSAGE_LOSS_REPORT
+        int sequenceNumber;
+        int count;
+        // MESSAGE_PING
+        long timestampUs;
+        int rttUs;
+
+        Message(int type) {
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{"
+                    + "type: " + type
+                    + (type == MESSAGE_HELLO ? ", " + width + "x" + height + "@" + dpi : "")
+                    + (type == MESSAGE_LOSS_REPORT ? ", lost: " + sequenceNumber + "+" + count
+                            : "")
+                    + (type == MESSAGE_PING ? ", timestamp: " + timestampUs + "us, rtt: "
+                            + rttUs + "us" : "")
+                    + "}";
+        }
+    }
+
+    static ByteBuffer createHello(int width, int height, int dpi) {
+        ByteBuffer message = createMessage(MESSAGE_HELLO, HELLO_LENGTH);
+        message.putInt(width);
+        message.putInt(height);
+        message.putInt(dpi);
+        message.flip();
+        return message;
+    }
+
+    static ByteBuffer createKeyFrameRequest() {
+        ByteBuffer message = createMessage(MESSAGE_KEY_FRAME_REQUEST, MESSAGE_HEADER_LENGTH);
+        message.flip();
+        return message;
+    }
+
+    static ByteBuffer createLossReport(int sequenceNumber, int count) {
+        ByteBuffer message = createMessage(MESSAGE_LOSS_REPORT, LOSS_REPORT_LENGTH);
+        message.putInt(sequenceNumber);
+        message.putInt(count);
+        message.flip();
+        return message;
+    }
+
+    static ByteBuffer createPing(long timestampUs, int rttUs) {
+        ByteBuffer message = createMessage(MESSAGE_PING, PING_LENGTH);
+        message.putLong(timestampUs);
+        message.putInt(rttUs);
+        message.flip();
+        return message;
+    }
+
+    private static ByteBuffer createMessage(int type, int length) {
+        ByteBuffer message = ByteBuffer.allocate(length);
+        message.putInt(MAGIC);
+        message.put((byte) VERSION);
+        message.put((byte) type);
+        message.putShort((short) length);
+        return message;
+    }
+
+    /**
+     * Reads a message from the buffer, on success the buffer is positioned after the message.
+     *
+     * @return the message or null if the buffer doesn't contain a complete message yet, buffer is
+     *         not changed
+     * @throws IllegalArgumentException if the buffer doesn't start with a valid message
+     */
+    static Message readMessage(ByteBuffer buffer) {
+        if (buffer.remaining() < MESSAGE_HEADER_LENGTH) return null;
+
+        int start = buffer.position();
+        if (buffer.getInt(start) != MAGIC) {
+            throw new IllegalArgumentException("Bad magic: " + Integer.toHexString(
+                    buffer.getInt(start)));
+        }
+        int type = buffer.get(start + 5) & 0xff;
+        int length = buffer.getShort(start + 6) & 0xffff;
+        if (length < getMinMessageLength(type)) {
+            throw new IllegalArgumentException("Bad length " + length + " of message " + type);
+        }
+        if (buffer.remaining() < length) return null;
+
+        Message message = new Message(type);
+        switch (type) {
+            case MESSAGE_HELLO:
+                message.width = buffer.getInt(start + 8);
+                message.height = buffer.getInt(start + 12);
+                message.dpi = buffer.getInt(start + 16);
+                break;
+            case MESSAGE_LOSS_REPORT:
+                message.sequenceNumber = buffer.getInt(start + 8);
+                message.count = buffer.getInt(start + 12);
+                break;
+            case MESSAGE_PING:
+                message.timestampUs = buffer.getLong(start + 8);
+                message.rttUs = buffer.getInt(start + 16);
+                break;
+        }
+        buffer.position(start + length);
+        return message;
+    }
+
+    private static int getMinMessageLength(int type) {
+        switch (type) {
+            case MESSAGE_HELLO:
+                return HELLO_LENGTH;
+            case MESSAGE_LOSS_REPORT:
+                return LOSS_REPORT_LENGTH;
+            case MESSAGE_PING:
+                return PING_LENGTH;
+            default:
+                return MESSAGE_HEADER_LENGTH;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents a single receiver connected to {@link NetworkedVirtualDisplay}.
+ * <p>
+ * Each receiver owns a bounded lock-free send queue, so one slow receiver does not delay the
+ * others or the source. Frames are shared between receivers as reference counted
+ * {@link EncodedFrame}s, every receiver only keeps its own view of the frame content and releases
+ * the frame once it has been written. Queued frames, together with their wire headers, are written
+ * with a single gather write whenever possible.
+ * <p>
+ * A receiver that can't keep up degrades only its own picture, see {@link #offer}: disposable
+ * frames are dropped first, then everything up to the next key frame.
+ * <p>
+ * Frames are queued from the source thread, all socket I/O and {@link #close()} happen on the
+ * {@link SelectorTransport} thread.
+ */
+class StreamReceiver {
+    /** Maximum number of frames waiting to be written to a single receiver. */
+    private static final int MAX_QUEUED_FRAMES = 8;
+    /** Disposable frames and keepalives are only queued below this queue depth. */
+    private static final int MAX_QUEUED_DISPOSABLE_FRAMES = MAX_QUEUED_FRAMES / 2;
+
+    private final SocketChannel mChannel;
+    private final int mWireFormat;
+    private final StreamStats mStats;
+    private final String mName;
+    private final ConcurrentLinkedQueue<EncodedFrame> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueuedCount = new AtomicInteger();
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+    /** Holds at most one incomplete message, see {@link StreamProtocol#readMessage}. */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(256);
+
+    // Frames that are currently being written, accessed only from the transport thread. Every
+    // frame takes up to two buffers (header and content), the frame is stored next to its last
+    // buffer.
+    private final EncodedFrame[] mWritingFrames = new EncodedFrame[MAX_QUEUED_FRAMES * 2];
+    private final ByteBuffer[] mWritingBuffers = new ByteBuffer[MAX_QUEUED_FRAMES * 2];
+    private int mWritingOffset;
+    private volatile int mWritingCount;
+    private volatile int mWritingFrameCount;
+    private long mWriteStartNanos;
+    private final AtomicLong mMaxWriteLatencyNanos = new AtomicLong();
+
+    // A new receiver can't decode anything before a key frame, frames published before its stream
+    // start has been replayed would only corrupt its picture.
+    private volatile boolean mAwaitingKeyFrame = true;
+    private volatile boolean mStarted;
+    private final AtomicBoolean mKeyFrameNeeded = new AtomicBoolean();
+    private volatile long mFramesSent;
+    // Updated only by the thread queueing frames.
+    private volatile long mFramesDropped;
+    private volatile long mDisposableFramesDropped;
+    private volatile long mReferenceFramesDropped;
+
+    // Advertised with StreamProtocol.MESSAGE_HELLO, 0 if not known.
+    private volatile int mPreferredWidth;
+    private volatile int mPreferredHeight;
+    private volatile int mPreferredDpi;
+
+    // Feedback sent by the receiver, updated only by the transport thread.
+    private final AtomicBoolean mLossReported = new AtomicBoolean();
+    private volatile long mKeyFrameRequests;
+    private volatile long mFramesLost;
+    private volatile int mRttUs;
+    private final AtomicInteger mMaxRttUs = new AtomicInteger();
+    private volatile long mBytesIgnored;
+
+    /**
+     * @param wireFormat {@link StreamProtocol#WIRE_FORMAT_RAW} or
+     *                   {@link StreamProtocol#WIRE_FORMAT_FRAMED}, see {@link #read}
+     */
+    StreamReceiver(SocketChannel channel, int wireFormat, StreamStats stats) {
+        mChannel = channel;
+        mWireFormat = wireFormat;
+        mStats = stats;
+        mName = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Queues frame to be sent to this receiver, the receiver retains its own reference to the
+     * frame. Frames should be queued from a single thread at a time.
+     * <p>
+     * Once the queue is half full, disposable frames and keepalives are dropped to leave room for
+     * frames others depend on. Codec config is always queued. A key frame that finds the queue full
+     * replaces all queued frames except codec config, as nothing after it depends on them. Any
+     * other frame dropped because the queue is full breaks decoding of the frames that follow, so
+     * the receiver skips everything up to the next key frame (see {@link #isAwaitingKeyFrame()})
+     * and reports it needs one, see {@link #takeKeyFrameNeeded()}.
+     *
+     * @return false if the frame has been dropped for this receiver
+     */
+    boolean offer(EncodedFrame frame) {
+        if (mClosed.get()) return false;
+
+        int queued = mQueuedCount.get();
+        if (frame.isCodecConfig()) {
+            // Always queued, tiny and required to decode anything that follows.
+        } else if (frame.isDisposable() || frame.isKeepalive()) {
+            if (queued >= MAX_QUEUED_DISPOSABLE_FRAMES) {
+                mDisposableFramesDropped++;
+                mStats.disposableFramesDropped.incrementAndGet();
+                onFramesDropped(1);
+                return false;
+            }
+        } else if (queued >= MAX_QUEUED_FRAMES) {
+            if (!frame.isKeyFrame()) {
+                mReferenceFramesDropped++;
+                mStats.referenceFramesDropped.incrementAndGet();
+                onFramesDropped(1);
+                mAwaitingKeyFrame = true;
+                mKeyFrameNeeded.set(true);
+                return false;
+            }
+            onFramesDropped(dropQueuedFrames());
+        }
+
+        mQueue.add(frame.retain());
+        mQueuedCount.incrementAndGet();
+        if (mClosed.get()) {
+            // Closed meanwhile, close() may have missed the frame.
+            releaseQueuedFrames();
+        }
+        return true;
+    }
+
+    /** Removes all queued frames except codec config, returns number of removed frames. */
+    private int dropQueuedFrames() {
+        int dropped = 0;
+        int count = mQueuedCount.get();
+        EncodedFrame frame;
+        // Frames are taken from the head, the same as the transport thread does, so codec config
+        // put back to the tail stays in order with whatever the transport thread takes meanwhile.
+        for (int i = 0; i < count && (frame = pollQueuedFrame()) != null; i++) {
+            if (frame.isCodecConfig()) {
+                mQueue.add(frame);
+                mQueuedCount.incrementAndGet();
+            } else {
+                frame.release();
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    private void onFramesDropped(int count) {
+        mFramesDropped += count;
+        mStats.framesDropped.addAndGet(count);
+    }
+
+    private EncodedFrame pollQueuedFrame() {
+        EncodedFrame frame = mQueue.poll();
+        if (frame != null) {
+            mQueuedCount.decrementAndGet();
+        }
+        return frame;
+    }
+
+    private void releaseQueuedFrames() {
+        EncodedFrame frame;
+        while ((frame = pollQueuedFrame()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Returns true if frames have been dropped in a way the receiver can only recover from with a
+     * key frame since the last call.
+     */
+    boolean takeKeyFrameNeeded() {
+        return mKeyFrameNeeded.getAndSet(false);
+    }
+
+    /**
+     * Returns true if this receiver still has frames to write, such receivers should not be given
+     * frames borrowed from the encoder as they may hold them for too long.
+     */
+    boolean hasBacklog() {
+        return mWritingCount > 0 || mQueuedCount.get() > 0;
+    }
+
+    /**
+     * Returns true if a frame borrowed from the encoder is queued or being written, see
+     * {@link EncodedFrame#isBorrowed()}. Must be called on the transport thread.
+     */
+    boolean hasBorrowedFrames() {
+        for (EncodedFrame frame : mQueue) {
+            if (frame.isBorrowed()) return true;
+        }
+        for (int i = mWritingOffset; i < mWritingCount; i++) {
+            if (mWritingFrames[i] != null && mWritingFrames[i].isBorrowed()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes as much of the queued data as the socket accepts without blocking.
+     *
+     * @return true if all queued frames have been written
+     */
+    boolean write() throws IOException {
+        while (true) {
+            if (mWritingCount == 0 && !pollQueuedFrames()) return true;
+
+            long written = mChannel.write(mWritingBuffers, mWritingOffset,
+                    mWritingCount - mWritingOffset);
+            mStats.bytesWritten.addAndGet(written);
+            long now = System.nanoTime();
+
+            while (mWritingOffset < mWritingCount
+                    && !mWritingBuffers[mWritingOffset].hasRemaining()) {
+                EncodedFrame frame = mWritingFrames[mWritingOffset];
+                if (frame != null) {
+                    mFramesSent++;
+                    mWritingFrameCount--;
+                    updateWriteLatency(now - frame.getQueuedAtNanos());
+                    mStats.onFrameWritten(frame, mWriteStartNanos, now);
+                }
+                releaseWritingFrame(mWritingOffset++);
+            }
+            if (mWritingOffset < mWritingCount) return false;
+
+            mWritingOffset = 0;
+            mWritingCount = 0;
+        }
+    }
+
+    private boolean pollQueuedFrames() {
+        EncodedFrame frame;
+        while (mWritingCount + 2 <= mWritingBuffers.length
+                && (frame = pollQueuedFrame()) != null) {
+            ByteBuffer header = frame.header();
+            if (header != null) {
+                mWritingBuffers[mWritingCount++] = header;
+            }
+            mWritingFrames[mWritingCount] = frame;
+            mWritingBuffers[mWritingCount] = frame.data();
+            mWritingCount++;
+            mWritingFrameCount++;
+        }
+        mWriteStartNanos = System.nanoTime();
+        return mWritingCount > 0;
+    }
+
+    private void releaseWritingFrame(int i) {
+        if (mWritingFrames[i] != null) {
+            mWritingFrames[i].release();
+            mWritingFrames[i] = null;
+        }
+        mWritingBuffers[i] = null;
+    }
+
+    /**
+     * Consumes data sent by the receiver, complete messages are added to {@code messages}.
+     * <p>
+     * Receivers of the raw format may predate messages and send anything, data that is not a valid
+     * message is skipped up to the next message header.
+     *
+     * @return false if the receiver has closed the connection
+     * @throws IOException also if a receiver of the framed format sent something else than valid
+     *                     messages
+     */
+    boolean read(List<StreamProtocol.Message> messages) throws IOException {
+        boolean raw = mWireFormat == StreamProtocol.WIRE_FORMAT_RAW;
+        int read;
+        do {
+            read = mChannel.read(mReadBuffer);
+            mReadBuffer.flip();
+            while (mReadBuffer.hasRemaining()) {
+                StreamProtocol.Message message;
+                try {
+                    message = StreamProtocol.readMessage(mReadBuffer);
+                } catch (IllegalArgumentException e) {
+                    if (!raw) throw new IOException("Bad message from " + mName, e);
+
+                    skipToNextMessage();
+                    continue;
+                }
+                if (message == null) break;
+
+                onMessage(message);
+                messages.add(message);
+            }
+            if (mReadBuffer.position() == 0 && mReadBuffer.limit() == mReadBuffer.capacity()) {
+                if (!raw) throw new IOException("Message from " + mName + " too long");
+
+                mBytesIgnored += mReadBuffer.remaining();
+                mReadBuffer.position(mReadBuffer.limit());
+            }
+            mReadBuffer.compact();
+        } while (read > 0);
+        return read != -1;
+    }
+
+    /** Skips the invalid message at the read position up to the next possible message start. */
+    private void skipToNextMessage() {
+        byte magicStart = (byte) (StreamProtocol.MAGIC >>> 24);
+        int start = mReadBuffer.position();
+        int next = start + 1;
+        while (next < mReadBuffer.limit() && mReadBuffer.get(next) != magicStart) {
+            next++;
+        }
+        mBytesIgnored += next - start;
+        mReadBuffer.position(next);
+    }
+
+    private void onMessage(StreamProtocol.Message message) {
+        switch (message.type) {
+            case StreamProtocol.MESSAGE_HELLO:
+                mPreferredWidth = Math.max(0, message.width);
+                mPreferredHeight = Math.max(0, message.height);
+                mPreferredDpi = Math.max(0, message.dpi);
+                break;
+
+            case StreamProtocol.MESSAGE_KEY_FRAME_REQUEST:
+                // Nothing is decodable for the receiver up to the next key frame.
+                mAwaitingKeyFrame = true;
+                mKeyFrameRequests++;
+                break;
+
+            case StreamProtocol.MESSAGE_LOSS_REPORT:
+                // Lost frames may be referenced by any later frame.
+                mAwaitingKeyFrame = true;
+                mFramesLost += Math.max(0, message.count);
+                mLossReported.set(true);
+                break;
+
+            case StreamProtocol.MESSAGE_PING:
+                if (message.rttUs > 0) {
+                    mRttUs = message.rttUs;
+                    if (message.rttUs > mMaxRttUs.get()) {
+                        mMaxRttUs.set(message.rttUs);
+                    }
+                }
+                break;
+        }
+    }
+
+    /** Returns true if the receiver reported lost frames since the last call. */
+    boolean takeLossReported() {
+        return mLossReported.getAndSet(false);
+    }
+
+    /**
+     * Returns the longest round trip time reported by the receiver since the last call, or 0 if
+     * none has been reported.
+     */
+    int takeMaxRttUs() {
+        return mMaxRttUs.getAndSet(0);
+    }
+
+    /** Returns true if the receiver advertised a preferred display size. */
+    boolean hasPreferredSize() {
+        return mPreferredWidth > 0 && mPreferredHeight > 0;
+    }
+
+    int getPreferredWidth() {
+        return mPreferredWidth;
+    }
+
+    int getPreferredHeight() {
+        return mPreferredHeight;
+    }
+
+    /** Returns preferred display density or 0 if the default density should be scaled. */
+    int getPreferredDpi() {
+        return mPreferredDpi;
+    }
+
+    /**
+     * Returns true if the receiver has only been given stream headers and a replayed key frame, and
+     * should not get any frames until the next key frame, as it wouldn't be able to decode them.
+     */
+    boolean isAwaitingKeyFrame() {
+        return mAwaitingKeyFrame;
+    }
+
+    void setAwaitingKeyFrame(boolean awaitingKeyFrame) {
+        mAwaitingKeyFrame = awaitingKeyFrame;
+    }
+
+    /**
+     * Returns true once the stream start (codec config and the last key frame) has been sent to
+     * the receiver, published frames are skipped before, so a live key frame can't get ahead of
+     * codec config.
+     */
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    void setStarted(boolean started) {
+        mStarted = started;
+    }
+
+    boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * Closes the connection and releases all frames that haven't been written yet.
+     *
+     * @return true if connection was closed by this call
+     */
+    boolean close() {
+        if (!mClosed.compareAndSet(false, true)) return false;
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Ignore, nothing else can be done about it.
+        }
+        releaseQueuedFrames();
+        for (int i = mWritingOffset; i < mWritingCount; i++) {
+            releaseWritingFrame(i);
+        }
+        mWritingOffset = 0;
+        mWritingCount = 0;
+        mWritingFrameCount = 0;
+        return true;
+    }
+
+    private void updateWriteLatency(long latencyNanos) {
+        long max = mMaxWriteLatencyNanos.get();
+        while (latencyNanos > max && !mMaxWriteLatencyNanos.compareAndSet(max, latencyNanos)) {
+            max = mMaxWriteLatencyNanos.get();
+        }
+    }
+
+    /**
+     * Returns the longest time a frame took from being queued until fully written since the last
+     * call, and starts a new measurement.
+     */
+    long takeMaxWriteLatencyNanos() {
+        return mMaxWriteLatencyNanos.getAndSet(0);
+    }
+
+    /** Returns number of frames queued or being written. */
+    int getPendingFrameCount() {
+        return getQueuedFrameCount() + mWritingFrameCount;
+    }
+
+    int getQueuedFrameCount() {
+        return mQueuedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + mName
+                + (hasPreferredSize() ? ", preferred: " + mPreferredWidth + "x"
+                        + mPreferredHeight + "@" + mPreferredDpi : "")
+                + ", queued: " + getQueuedFrameCount()
+                + ", sent: " + mFramesSent
+                + ", dropped: " + mFramesDropped
+                + " (disposable: " + mDisposableFramesDropped
+                + ", reference: " + mReferenceFramesDropped + ")"
+                + ", lost: " + mFramesLost
+                + ", keyFrameRequests: " + mKeyFrameRequests
+                + ", rtt: " + mRttUs + "us"
+                + (mBytesIgnored > 0 ? ", ignored: " + mBytesIgnored + " bytes" : "")
+                + "}";
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the encoded stream into a ring of raw Annex-B segment files, so the last few minutes
+ * of cluster output can be pulled from the device and played without a network receiver.
+ * <p>
+ * Segments are named {@code cluster-<n>.<extension>} with increasing {@code n}, at most
+ * {@code segmentCount} of them are kept. Frames are written into one of two scratch files mapped
+ * into memory with the maximum segment size up front, so disk usage is bounded by
+ * {@code (segmentCount + 2) * segmentSize}. Every segment starts with codec config followed by a
+ * key frame and can be played on its own. A new segment is started on a key frame once the
+ * current one is older than the segment duration or the codec config changed, or right away
+ * (waiting for a requested sync frame) if the current one is full.
+ * <p>
+ * Finished segments are written from the scratch mapping to their file and synced by the writer
+ * executor, so the source thread never waits for storage. If the writer still holds both scratch
+ * files when a segment should start, frames are skipped until the next key frame.
+ * <p>
+ * Recording stops on the first I/O error, see {@link #getError()}.
+ * <p>
+ * Not thread safe, all methods should be called on the source thread.
+ */
+class StreamRecorder implements FrameSink {
+    private static final String FILE_PREFIX = "cluster-";
+    private static final String SCRATCH_FILE_PREFIX = "recording-";
+    private static final int SCRATCH_FILE_COUNT = 2;
+
+    private final File mDirectory;
+    private final String mExtension;
+    private final int mSegmentCount;
+    private final int mSegmentSize;
+    private final long mSegmentDurationNanos;
+    private final FrameSource mSource;
+
+    // Scratch mappings not used by the writer, returned by it once a segment has been written.
+    private final ConcurrentLinkedQueue<MappedByteBuffer> mFreeSegments =
+            new ConcurrentLinkedQueue<>();
+    private final Executor mWriter;
+    private volatile IOException mWriterError;
+
+    private EncodedFrame mCodecConfig;
+    private MappedByteBuffer mSegment;
+    private long mSegmentStartNanos;
+    private int mSegmentNumber;
+    private boolean mAwaitingKeyFrame = true;
+
+    private long mFramesWritten;
+    private long mFramesSkipped;
+    private long mBytesWritten;
+    private IOException mError;
+
+    /**
+     * @param extension file extension matching the stream format, e.g. {@code h264}
+     * @param writer executor writing finished segments, should run tasks in order on a thread
+     *               other than the source thread
+     */
+    StreamRecorder(File directory, String extension, int segmentCount, int segmentSize,
+            long segmentDurationMs, FrameSource source, Executor writer) {
+        mDirectory = directory;
+        mExtension = extension;
+        mSegmentCount = segmentCount;
+        mSegmentSize = segmentSize;
+        mSegmentDurationNanos = TimeUnit.MILLISECONDS.toNanos(segmentDurationMs);
+        mSource = source;
+        mWriter = writer;
+    }
+
+    /**
+     * Removes segments of an earlier recording, maps the scratch files and waits for the next key
+     * frame.
+     */
+    void start() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(FILE_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        mFreeSegments.clear();
+        for (int i = 0; i < SCRATCH_FILE_COUNT; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(scratchFile(i), "rw")) {
+                // Mapping stays valid once the file is closed.
+                mFreeSegments.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        mSegmentSize));
+            }
+        }
+        mError = null;
+        mWriterError = null;
+        mSource.requestSyncFrame();
+    }
+
+    /**
+     * Writes the frame to the current segment. Codec config is kept to be written in front of
+     * every segment, repeated frames and keepalives are ignored.
+     */
+    @Override
+    public void onFrame(EncodedFrame frame) {
+        if (mError != null) return;
+
+        if (mWriterError != null) {
+            mError = mWriterError;
+            stop();
+            return;
+        }
+        write(frame);
+    }
+
+    /** Returns the error that stopped recording or null. */
+    IOException getError() {
+        return mError != null ? mError : mWriterError;
+    }
+
+    private void write(EncodedFrame frame) {
+        if (frame.isCodecConfig()) {
+            if (mCodecConfig != null && !mCodecConfig.data().equals(frame.data())) {
+                // Encoder has been reconfigured, e.g. with a new size, segments start over.
+                finishSegment();
+            }
+            if (mCodecConfig != null) mCodecConfig.release();
+            mCodecConfig = frame.isBorrowed()
+                    ? EncodedFrame.copyOf(frame.data(), frame.getPresentationTimeUs(),
+                            frame.getFlags())
+                    : frame.retain();
+            return;
+        }
+        if (frame.isRepeated() || frame.isKeepalive()) return;
+
+        long now = System.nanoTime();
+        boolean full = mSegment != null && mSegment.remaining() < frame.size();
+        if (frame.isKeyFrame() && mCodecConfig != null && (mSegment == null || full
+                || now - mSegmentStartNanos >= mSegmentDurationNanos)) {
+            startSegment(now);
+        } else if (full) {
+            finishSegment();
+            mSource.requestSyncFrame();
+        }
+
+        if (mAwaitingKeyFrame || frame.size() > mSegment.remaining()) {
+            mFramesSkipped++;
+            return;
+        }
+        mSegment.put(frame.data());
+        mFramesWritten++;
+        mBytesWritten += frame.size();
+    }
+
+    /**
+     * Finishes the current segment, the recorder can be started again later. The segment is
+     * still written by the writer afterwards.
+     */
+    void stop() {
+        finishSegment();
+        if (mCodecConfig != null) {
+            mCodecConfig.release();
+            mCodecConfig = null;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Pages are freed once the mappings are collected.
+                for (int i = 0; i < SCRATCH_FILE_COUNT; i++) {
+                    scratchFile(i).delete();
+                }
+            }
+        });
+        mFreeSegments.clear();
+    }
+
+    private void startSegment(long nowNanos) {
+        finishSegment();
+
+        mSegment = mFreeSegments.poll();
+        if (mSegment == null) {
+            // Writer is behind, frames are skipped until the next key frame.
+            return;
+        }
+        mSegment.clear();
+        mSegmentNumber++;
+        mSegmentStartNanos = nowNanos;
+        mAwaitingKeyFrame = false;
+
+        mSegment.put(mCodecConfig.data());
+        mBytesWritten += mCodecConfig.size();
+    }
+
+    /**
+     * Hands the current segment over to the writer, frames are skipped until the next segment is
+     * started.
+     */
+    private void finishSegment() {
+        mAwaitingKeyFrame = true;
+        if (mSegment == null) return;
+
+        final MappedByteBuffer segment = mSegment;
+        final int number = mSegmentNumber - 1;
+        mSegment = null;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSegment(segment, number);
+                } catch (IOException e) {
+                    if (mWriterError == null) mWriterError = e;
+                } finally {
+                    mFreeSegments.add(segment);
+                }
+            }
+        });
+    }
+
+    /** Writes the used part of the scratch mapping to the segment file, on the writer thread. */
+    private void writeSegment(MappedByteBuffer segment, int number) throws IOException {
+        File oldest = segmentFile(number - mSegmentCount);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Unable to delete " + oldest);
+        }
+        ByteBuffer data = segment.duplicate();
+        data.flip();
+        try (FileOutputStream out = new FileOutputStream(segmentFile(number))) {
+            FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(mDirectory, FILE_PREFIX + number + "." + mExtension);
+    }
+
+    private File scratchFile(int index) {
+        return new File(mDirectory, SCRATCH_FILE_PREFIX + index);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "directory: " + mDirectory
+                + ", segment: " + (mSegment != null ? mSegmentNumber - 1 : "none")
+                + ", awaitingKeyFrame: " + mAwaitingKeyFrame
+                + ", framesWritten: " + mFramesWritten
+                + ", framesSkipped: " + mFramesSkipped
+                + ", bytesWritten: " + mBytesWritten
+                + ", error: " + getError()
+                + "}";
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the encoded stream of a {@link FrameSource} to network receivers.
+ * <p>
+ * Frames are framed according to the wire format (see {@link StreamProtocol}), numbered and
+ * published through {@link SelectorTransport}. Codec config and the last key frame are cached and
+ * replayed to every newly connected receiver, together with an on-demand sync frame request, so
+ * late joiners get a decodable picture right away instead of waiting for the next periodic key
+ * frame.
+ * <p>
+ * Key frame requests and loss reports from receivers (see {@link StreamProtocol}) are turned into
+ * sync frame requests right away, so a receiver recovers from corruption within a round trip. The
+ * same goes for reference frames dropped because a receiver queue is full, see
+ * {@link StreamReceiver#offer}. Requests are coalesced while a sync frame is pending. Pings are
+ * answered in the framed format.
+ * <p>
+ * This class has no Android dependencies. All methods must be called on the source thread and
+ * connection events are delivered to {@link Listener} through the executor given to the
+ * constructor, which must run tasks on that thread.
+ */
+class StreamServer implements FrameSink {
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
+    /** Sync frame requests are passed to the source again if no key frame arrived meanwhile. */
+    private static final long SYNC_FRAME_REQUEST_TIMEOUT_MS = 500;
+
+    interface Listener {
+        /** Called before the stream start is replayed to the receiver. */
+        void onReceiverConnected(StreamReceiver receiver);
+
+        /**
+         * Called when receiver has disconnected.
+         *
+         * @param cause I/O error that caused disconnection or null if receiver closed connection
+         */
+        void onReceiverDisconnected(StreamReceiver receiver, IOException cause);
+
+        /** Called when the transport failed to accept a connection, server keeps running. */
+        void onTransportError(IOException e);
+
+        /**
+         * Called for every message from a connected receiver, after the receiver state has been
+         * updated, e.g. {@link StreamReceiver#getPreferredWidth()} for
+         * {@link StreamProtocol#MESSAGE_HELLO}.
+         */
+        void onReceiverMessage(StreamReceiver receiver, StreamProtocol.Message message);
+    }
+
+    private final int mWireFormat;
+    private final FrameSource mSource;
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final StreamStats mStats;
+    private final SelectorTransport mTransport;
+
+    private final DirectBufferPool mKeyFramePool = new DirectBufferPool(2);
+    private EncodedFrame mLastKeyFrame;
+    private EncodedFrame mCodecConfig;
+    private int mSequenceNumber;
+    private long mSyncFrameRequestedAtNanos;
+
+    /**
+     * @param wireFormat {@link StreamProtocol#WIRE_FORMAT_RAW} or
+     *                   {@link StreamProtocol#WIRE_FORMAT_FRAMED}
+     * @param executor executor running tasks on the source thread
+     */
+    StreamServer(int port, int wireFormat, FrameSource source, Executor executor,
+            Listener listener, StreamStats stats) {
+        mWireFormat = wireFormat;
+        mSource = source;
+        mExecutor = executor;
+        mListener = listener;
+        mStats = stats;
+        mTransport = new SelectorTransport(port, wireFormat, new TransportListener(), stats);
+    }
+
+    /** Opens server socket, see {@link SelectorTransport#start()}. */
+    void start() throws IOException {
+        mTransport.start();
+    }
+
+    /** Closes all connections and releases cached frames. */
+    void close() {
+        mTransport.close();
+        reset();
+    }
+
+    /** Forgets cached stream start, should be called when the source is restarted. */
+    void reset() {
+        clearLastKeyFrame();
+        clearCodecConfig();
+        mSyncFrameRequestedAtNanos = 0;
+    }
+
+    /**
+     * Disconnects receivers still holding frames borrowed from the source, see
+     * {@link SelectorTransport#disconnectBorrowingReceivers()}.
+     */
+    void disconnectBorrowingReceivers() {
+        mTransport.disconnectBorrowingReceivers();
+    }
+
+    @Override
+    public void onFrame(EncodedFrame frame) {
+        if (frame.isCodecConfig()) {
+            retainCodecConfig(frame);
+        } else if (frame.isKeyFrame()) {
+            retainKeyFrame(frame);
+            mSyncFrameRequestedAtNanos = 0;
+        }
+        publish(frame, mSequenceNumber++);
+    }
+
+    /**
+     * Sends the smallest message receivers accept without changing the picture: the given
+     * payload in raw format, e.g. an access unit delimiter, or a header without payload in framed
+     * format. Keepalives don't consume a sequence number.
+     */
+    void sendKeepalive(ByteBuffer rawPayload) {
+        boolean framed = mWireFormat == StreamProtocol.WIRE_FORMAT_FRAMED;
+        EncodedFrame frame = EncodedFrame.wrap(framed ? EMPTY_PAYLOAD : rawPayload,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime()), EncodedFrame.FLAG_KEEPALIVE,
+                null /* recycler */, -1 /* bufferIndex */);
+        publish(frame, mSequenceNumber);
+        frame.release();
+        mStats.keepalivesSent.incrementAndGet();
+    }
+
+    /** Returns cached codec config or null, the frame is only valid until the next one arrives. */
+    EncodedFrame getCodecConfig() {
+        return mCodecConfig;
+    }
+
+    List<StreamReceiver> getReceivers() {
+        return mTransport.getReceivers();
+    }
+
+    int getReceiverCount() {
+        return mTransport.getReceiverCount();
+    }
+
+    int getLocalPort() {
+        return mTransport.getLocalPort();
+    }
+
+    private void publish(EncodedFrame frame, int sequenceNumber) {
+        if (mWireFormat == StreamProtocol.WIRE_FORMAT_FRAMED) {
+            frame.setHeader(StreamProtocol.createHeader(frame, sequenceNumber));
+        }
+        if (mTransport.publish(frame) > 0) {
+            // Receivers dropped a reference frame, the sooner the key frame the shorter the freeze.
+            requestSyncFrame();
+        }
+    }
+
+    /**
+     * Keeps a copy of the key frame in a pooled direct buffer, so it can be resent after the
+     * source buffer has been returned.
+     */
+    private void retainKeyFrame(EncodedFrame frame) {
+        EncodedFrame keyFrame;
+        if (frame.isBorrowed()) {
+            keyFrame = EncodedFrame.copyInto(mKeyFramePool.acquire(frame.size()), frame.data(),
+                    frame.getPresentationTimeUs(), frame.getFlags(), mKeyFramePool);
+        } else {
+            keyFrame = frame.retain();
+        }
+        clearLastKeyFrame();
+        mLastKeyFrame = keyFrame;
+    }
+
+    private void clearLastKeyFrame() {
+        if (mLastKeyFrame != null) {
+            mLastKeyFrame.release();
+            mLastKeyFrame = null;
+        }
+    }
+
+    /** Keeps codec config (SPS/PPS for AVC) to replay it to receivers connected later. */
+    private void retainCodecConfig(EncodedFrame frame) {
+        EncodedFrame codecConfig = frame.isBorrowed()
+                ? EncodedFrame.copyOf(frame.data(), frame.getPresentationTimeUs(),
+                        frame.getFlags())
+                : frame.retain();
+        clearCodecConfig();
+        mCodecConfig = codecConfig;
+    }
+
+    private void clearCodecConfig() {
+        if (mCodecConfig != null) {
+            mCodecConfig.release();
+            mCodecConfig = null;
+        }
+    }
+
+    /**
+     * Sends codec config and the last key frame to the receiver, so it can show a picture
+     * immediately, and asks the source for a new sync frame the receiver can continue from.
+     */
+    private void replayStreamStart(StreamReceiver receiver) {
+        receiver.setAwaitingKeyFrame(true);
+        if (mCodecConfig != null) {
+            sendReplayedFrame(receiver, mCodecConfig);
+        }
+        if (mLastKeyFrame != null) {
+            sendReplayedFrame(receiver, mLastKeyFrame);
+        }
+        receiver.setStarted(true);
+        requestSyncFrame();
+    }
+
+    /** Asks the source for a sync frame unless an earlier request is still pending. */
+    private void requestSyncFrame() {
+        long now = System.nanoTime();
+        if (mSyncFrameRequestedAtNanos != 0 && now - mSyncFrameRequestedAtNanos
+                < TimeUnit.MILLISECONDS.toNanos(SYNC_FRAME_REQUEST_TIMEOUT_MS)) {
+            mStats.syncFrameRequestsCoalesced.incrementAndGet();
+            return;
+        }
+        mSyncFrameRequestedAtNanos = now;
+        mSource.requestSyncFrame();
+    }
+
+    /**
+     * Acts on receiver feedback, the receiver itself has already stopped taking frames up to the
+     * next key frame if needed, see {@link StreamReceiver}.
+     */
+    private void onReceiverMessage(StreamReceiver receiver, StreamProtocol.Message message) {
+        switch (message.type) {
+            case StreamProtocol.MESSAGE_KEY_FRAME_REQUEST:
+                mStats.keyFrameRequests.incrementAndGet();
+                requestSyncFrame();
+                break;
+
+            case StreamProtocol.MESSAGE_LOSS_REPORT:
+                mStats.lossReports.incrementAndGet();
+                requestSyncFrame();
+                break;
+
+            case StreamProtocol.MESSAGE_PING:
+                if (mWireFormat == StreamProtocol.WIRE_FORMAT_FRAMED) {
+                    sendPong(receiver, message.timestampUs);
+                }
+                break;
+        }
+    }
+
+    private void sendPong(StreamReceiver receiver, long timestampUs) {
+        // Queued like a keepalive, so it is dropped first when the receiver falls behind.
+        EncodedFrame frame = EncodedFrame.wrap(EMPTY_PAYLOAD, timestampUs,
+                EncodedFrame.FLAG_KEEPALIVE, null /* recycler */, -1 /* bufferIndex */);
+        frame.setHeader(StreamProtocol.createPongHeader(timestampUs, mSequenceNumber));
+        mTransport.send(receiver, frame);
+        frame.release();
+    }
+
+    private void sendReplayedFrame(StreamReceiver receiver, EncodedFrame source) {
+        EncodedFrame frame = EncodedFrame.viewOf(source);
+        if (mWireFormat == StreamProtocol.WIRE_FORMAT_FRAMED) {
+            // Not numbered, live frames are skipped up to the next key frame anyway, see
+            // StreamProtocol.
+            frame.setHeader(StreamProtocol.createReplayedHeader(frame, mSequenceNumber - 1));
+        }
+        mTransport.send(receiver, frame);
+        frame.release();
+    }
+
+    /** Moves transport events over to the source thread. */
+    private class TransportListener implements SelectorTransport.Listener {
+        @Override
+        public void onReceiverConnected(final StreamReceiver receiver) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mStats.clientsConnected.incrementAndGet();
+                    // Disconnected before we had a chance to handle it.
+                    if (receiver.isClosed()) return;
+
+                    mListener.onReceiverConnected(receiver);
+                    replayStreamStart(receiver);
+                }
+            });
+        }
+
+        @Override
+        public void onReceiverDisconnected(final StreamReceiver receiver,
+                final IOException cause) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mStats.clientsDisconnected.incrementAndGet();
+                    mListener.onReceiverDisconnected(receiver, cause);
+                }
+            });
+        }
+
+        @Override
+        public void onTransportError(final IOException e) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onTransportError(e);
+                }
+            });
+        }
+
+        @Override
+        public void onReceiverMessage(final StreamReceiver receiver,
+                final StreamProtocol.Message message) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (receiver.isClosed()) return;
+
+                    StreamServer.this.onReceiverMessage(receiver, message);
+                    mListener.onReceiverMessage(receiver, message);
+                }
+            });
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "port: " + mTransport.getLocalPort()
+                + ", wireFormat: " + mWireFormat
+                + ", receivers: " + mTransport.getReceivers()
+                + ", sequenceNumber: " + mSequenceNumber
+                + "}";
+    }
+}
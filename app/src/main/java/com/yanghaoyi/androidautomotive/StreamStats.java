@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and per-stage latency histograms of the networked cluster stream.
+ * <p>
+ * Frame timing is split into stages, all measured with {@link System#nanoTime()} which is also
+ * the time base of presentation timestamps for surface input:
+ * <ul>
+ *     <li>encoder - from presentation time until encoder output is available
+ *     <li>copy - from encoder output until frame is queued to receivers
+ *     <li>queue - from being queued until a receiver starts writing it
+ *     <li>write - from the start of the write until the frame is fully written
+ *     <li>total - from presentation time until the frame is fully written
+ * </ul>
+ * All updates are lock-free and may happen from any thread.
+ */
+class StreamStats {
+    final LatencyHistogram encoderLatency = new LatencyHistogram();
+    final LatencyHistogram copyLatency = new LatencyHistogram();
+    final LatencyHistogram queueLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    final AtomicLong outputBuffers = new AtomicLong();
+    final AtomicLong bufferErrors = new AtomicLong();
+    final AtomicLong clientsConnected = new AtomicLong();
+    final AtomicLong clientsDisconnected = new AtomicLong();
+    final AtomicLong framesDropped = new AtomicLong();
+    /** Part of {@link #framesDropped} that no other frame depended on. */
+    final AtomicLong disposableFramesDropped = new AtomicLong();
+    /** Part of {@link #framesDropped} that made the receiver skip to the next key frame. */
+    final AtomicLong referenceFramesDropped = new AtomicLong();
+    final AtomicLong framesWritten = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong idlePeriods = new AtomicLong();
+    final AtomicLong keepalivesSent = new AtomicLong();
+    final AtomicLong keyFrameRequests = new AtomicLong();
+    final AtomicLong lossReports = new AtomicLong();
+    /** Sync frame requests not passed to the source because one was still pending. */
+    final AtomicLong syncFrameRequestsCoalesced = new AtomicLong();
+
+    private final long mStartNanos = System.nanoTime();
+    private long mLastDumpNanos = mStartNanos;
+    private long mLastDumpBytes;
+
+    /** Called when the encoder produced a frame and it has been queued to receivers. */
+    void onFrameQueued(EncodedFrame frame, long outputNanos) {
+        long presentationNanos = TimeUnit.MICROSECONDS.toNanos(frame.getPresentationTimeUs());
+        if (presentationNanos > 0 && presentationNanos <= outputNanos) {
+            encoderLatency.recordNanos(outputNanos - presentationNanos);
+        }
+        copyLatency.recordNanos(frame.getQueuedAtNanos() - outputNanos);
+    }
+
+    /** Called by a receiver once the frame has been completely written to the socket. */
+    void onFrameWritten(EncodedFrame frame, long writeStartNanos, long nowNanos) {
+        framesWritten.incrementAndGet();
+        queueLatency.recordNanos(writeStartNanos - frame.getQueuedAtNanos());
+        writeLatency.recordNanos(nowNanos - writeStartNanos);
+
+        // Presentation time is not related to this write.
+        if (frame.isRepeated() || frame.isKeepalive()) return;
+        long presentationNanos = TimeUnit.MICROSECONDS.toNanos(frame.getPresentationTimeUs());
+        if (presentationNanos > 0 && presentationNanos <= nowNanos) {
+            totalLatency.recordNanos(nowNanos - presentationNanos);
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        long now = System.nanoTime();
+        long bytes = bytesWritten.get();
+        long sinceLastDumpNanos;
+        long bytesSinceLastDump;
+        synchronized (this) {
+            sinceLastDumpNanos = now - mLastDumpNanos;
+            bytesSinceLastDump = bytes - mLastDumpBytes;
+            mLastDumpNanos = now;
+            mLastDumpBytes = bytes;
+        }
+
+        writer.println("StreamStats:");
+        writer.println("  outputBuffers=" + outputBuffers
+                + ", bufferErrors=" + bufferErrors
+                + ", clientsConnected=" + clientsConnected
+                + ", clientsDisconnected=" + clientsDisconnected);
+        writer.println("  framesWritten=" + framesWritten
+                + ", framesDropped=" + framesDropped
+                + " (disposable=" + disposableFramesDropped
+                + ", reference=" + referenceFramesDropped + ")"
+                + ", bytesWritten=" + bytes);
+        writer.println("  idlePeriods=" + idlePeriods
+                + ", keepalivesSent=" + keepalivesSent);
+        writer.println("  keyFrameRequests=" + keyFrameRequests
+                + ", lossReports=" + lossReports
+                + ", syncFrameRequestsCoalesced=" + syncFrameRequestsCoalesced);
+        writer.println("  bytes/sec: " + bytesPerSecond(bytesSinceLastDump, sinceLastDumpNanos)
+                + " since last dump, " + bytesPerSecond(bytes, now - mStartNanos) + " overall");
+        writer.println("  encoder latency: " + encoderLatency);
+        writer.println("  copy latency:    " + copyLatency);
+        writer.println("  queue latency:   " + queueLatency);
+        writer.println("  write latency:   " + writeLatency);
+        writer.println("  total latency:   " + totalLatency);
+    }
+
+    private static long bytesPerSecond(long bytes, long durationNanos) {
+        return durationNanos > 0 ? bytes * TimeUnit.SECONDS.toNanos(1) / durationNanos : 0;
+    }
+}
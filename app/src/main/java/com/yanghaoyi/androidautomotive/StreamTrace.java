@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracing for the networked cluster stream hot path, used instead of per-frame logcat output.
+ * <p>
+ * When enabled, {@link #beginSection}/{@link #endSection} emit {@link Trace} sections visible in
+ * systrace and {@link #event} stores events in a fixed size ring buffer of primitives, which can be
+ * printed with {@link #dump}. When disabled every call is a single volatile read and nothing is
+ * allocated in either case.
+ */
+class StreamTrace {
+    private static final String TAG = "Cluster." + StreamTrace.class.getSimpleName();
+
+    static final int EVENT_OUTPUT_BUFFER = 1;
+    static final int EVENT_FRAME_QUEUED = 2;
+    static final int EVENT_SYNC_FRAME_REQUESTED = 3;
+    static final int EVENT_BITRATE_CHANGED = 4;
+    static final int EVENT_RECEIVER_CONNECTED = 5;
+    static final int EVENT_RECEIVER_DISCONNECTED = 6;
+    static final int EVENT_IDLE_ENTERED = 7;
+    static final int EVENT_IDLE_EXITED = 8;
+    static final int EVENT_KEEPALIVE_SENT = 9;
+    static final int EVENT_DISPLAY_RESIZED = 10;
+
+    private static final String[] EVENT_NAMES = {
+            "?",
+            "OUTPUT_BUFFER(index, size)",
+            "FRAME_QUEUED(size, receivers)",
+            "SYNC_FRAME_REQUESTED",
+            "BITRATE_CHANGED(bitrate)",
+            "RECEIVER_CONNECTED(receivers)",
+            "RECEIVER_DISCONNECTED(receivers)",
+            "IDLE_ENTERED",
+            "IDLE_EXITED(idleMs)",
+            "KEEPALIVE_SENT(receivers)",
+            "DISPLAY_RESIZED(width, height)",
+    };
+
+    /** Must be a power of two. */
+    private static final int CAPACITY = 1024;
+    private static final int LONGS_PER_EVENT = 3;
+
+    private final long[] mEvents = new long[CAPACITY * LONGS_PER_EVENT];
+    private final AtomicLong mNextEvent = new AtomicLong();
+    private volatile boolean mEnabled = Log.isLoggable(TAG, Log.DEBUG);
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** @param sectionName must be a constant, so no string is built on the hot path */
+    void beginSection(String sectionName) {
+        if (mEnabled) {
+            Trace.beginSection(sectionName);
+        }
+    }
+
+    void endSection() {
+        if (mEnabled) {
+            Trace.endSection();
+        }
+    }
+
+    void event(int type) {
+        event(type, 0, 0);
+    }
+
+    void event(int type, long arg1) {
+        event(type, arg1, 0);
+    }
+
+    /**
+     * Stores the event in the ring buffer, overwriting the oldest one. Events recorded
+     * concurrently with {@link #dump} may be printed partially updated.
+     */
+    void event(int type, long arg1, long arg2) {
+        if (!mEnabled) return;
+
+        int i = (int) (mNextEvent.getAndIncrement() & (CAPACITY - 1)) * LONGS_PER_EVENT;
+        mEvents[i] = System.nanoTime();
+        mEvents[i + 1] = ((long) type << 48) | (arg1 & 0xffffffffffffL);
+        mEvents[i + 2] = arg2;
+    }
+
+    void dump(PrintWriter writer) {
+        long next = mNextEvent.get();
+        long first = Math.max(0, next - CAPACITY);
+        writer.println("StreamTrace: enabled=" + mEnabled + ", events=" + next);
+
+        long previousNanos = 0;
+        for (long e = first; e < next; e++) {
+            int i = (int) (e & (CAPACITY - 1)) * LONGS_PER_EVENT;
+            long nanos = mEvents[i];
+            int type = (int) (mEvents[i + 1] >>> 48);
+            long arg1 = mEvents[i + 1] & 0xffffffffffffL;
+            long arg2 = mEvents[i + 2];
+
+            writer.println("  " + nanos / 1000 + "us"
+                    + " +" + (previousNanos != 0 ? (nanos - previousNanos) / 1000 : 0) + "us "
+                    + (type < EVENT_NAMES.length ? EVENT_NAMES[type] : String.valueOf(type))
+                    + " " + arg1 + " " + arg2);
+            previousNanos = nanos;
+        }
+    }
+}
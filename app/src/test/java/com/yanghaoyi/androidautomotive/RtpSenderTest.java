@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Sends synthetic access units through {@link RtpSender} to {@link RtpTestReceiver} over
+ * loopback and checks they are restored byte for byte, with and without simulated packet loss.
+ */
+public class RtpSenderTest {
+    private static final int FRAME_COUNT = 50;
+    private static final long FRAME_INTERVAL_US = 40000;
+    private static final int FEC_GROUP_SIZE = 4;
+    // Every 7th packet is lost, which is at most one per FEC group including its parity packet.
+    private static final int DROP_INTERVAL = 7;
+    private static final long TIMEOUT_MS = 2000;
+
+    private static final FrameSource SOURCE = new FrameSource() {
+        @Override
+        public void requestSyncFrame() {}
+
+        @Override
+        public void setBitrate(int bitrate) {}
+    };
+
+    private final List<EncodedFrame> mAccessUnits = SyntheticFrameSource.createAccessUnits(
+            FRAME_COUNT, 10, 3000, 20000);
+    private RtpTestReceiver mReceiver;
+    private RtpSender mSender;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mSender != null) mSender.stop();
+        if (mReceiver != null) mReceiver.stop();
+        for (EncodedFrame frame : mAccessUnits) {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void noLoss_accessUnitsRestored() throws Exception {
+        stream(0 /* fecGroupSize */, 0 /* dropInterval */);
+
+        assertEquals(mReceiver.toString(), FRAME_COUNT, mReceiver.framesReceived);
+        assertEquals(mReceiver.toString(), 0, mReceiver.framesLost);
+        assertEquals(mReceiver.toString(), 0, mReceiver.sequenceGaps);
+        assertAllReceivedIntact();
+    }
+
+    @Test
+    public void singleLossPerGroup_restoredFromParity() throws Exception {
+        stream(FEC_GROUP_SIZE, DROP_INTERVAL);
+
+        // Every dropped media packet is restored, dropped parity packets are not needed.
+        long fecPacketsDropped = mSender.getFecPacketsSent() - mReceiver.fecPackets;
+        assertEquals(mReceiver.toString(), mSender.getPacketsSent() / DROP_INTERVAL,
+                mReceiver.packetsDropped);
+        assertEquals(mReceiver.toString(), mReceiver.packetsDropped - fecPacketsDropped,
+                mReceiver.packetsRecovered);
+        assertEquals(mReceiver.toString(), FRAME_COUNT, mReceiver.framesReceived);
+        assertEquals(mReceiver.toString(), 0, mReceiver.framesLost);
+        assertEquals(mReceiver.toString(), 0, mReceiver.sequenceGaps);
+        assertAllReceivedIntact();
+    }
+
+    @Test
+    public void lossWithoutFec_onlyAffectedFramesLost() throws Exception {
+        stream(0 /* fecGroupSize */, DROP_INTERVAL);
+
+        assertEquals(mReceiver.toString(), mSender.getPacketsSent() / DROP_INTERVAL,
+                mReceiver.packetsDropped);
+        assertEquals(mReceiver.toString(), mReceiver.packetsDropped, mReceiver.sequenceGaps);
+        assertTrue(mReceiver.toString(), mReceiver.framesLost > 0);
+        assertTrue(mReceiver.toString(), mReceiver.framesReceived > 0);
+        assertTrue(mReceiver.toString(),
+                mReceiver.framesReceived + mReceiver.framesLost <= FRAME_COUNT);
+        assertAllReceivedIntact();
+    }
+
+    private void stream(int fecGroupSize, int dropInterval) throws Exception {
+        mReceiver = new RtpTestReceiver(0, fecGroupSize > 0).setDropInterval(dropInterval);
+        mReceiver.start();
+        mSender = new RtpSender(new InetSocketAddress("127.0.0.1", mReceiver.getLocalPort()),
+                RtpSender.DEFAULT_MAX_PACKET_SIZE, fecGroupSize, SOURCE);
+        mSender.start();
+
+        for (int i = 0; i < mAccessUnits.size(); i++) {
+            EncodedFrame unit = mAccessUnits.get(i);
+            EncodedFrame frame = EncodedFrame.copyOf(unit.data(), i * FRAME_INTERVAL_US,
+                    unit.getFlags());
+            mSender.onFrame(frame);
+            frame.release();
+            // Keeps the socket buffers from overflowing, the sender doesn't block.
+            assertTrue(mReceiver.toString(),
+                    mReceiver.awaitPackets(mSender.getPacketsSent(), TIMEOUT_MS));
+        }
+
+        assertEquals(mSender.toString(), 0, mSender.getPacketsDropped());
+        assertEquals(mReceiver.toString(), mSender.getPacketsSent(), mReceiver.packets);
+    }
+
+    /** Checks every received access unit, key frames are preceded by codec config. */
+    private void assertAllReceivedIntact() {
+        ByteBuffer codecConfig = mAccessUnits.get(0).data();
+        for (int i = 1; i < mAccessUnits.size(); i++) {
+            EncodedFrame unit = mAccessUnits.get(i);
+            int timestamp = (int) (i * FRAME_INTERVAL_US * RtpSender.CLOCK_RATE / 1000000);
+            byte[] received = mReceiver.getAccessUnit(timestamp);
+            if (received == null) continue;
+
+            ByteBuffer expected = ByteBuffer.allocate(codecConfig.remaining() + unit.size());
+            if (unit.isKeyFrame()) {
+                expected.put(codecConfig.duplicate());
+            }
+            expected.put(unit.data()).flip();
+            byte[] expectedBytes = new byte[expected.remaining()];
+            expected.get(expectedBytes);
+            assertArrayEquals("frame " + i, expectedBytes, received);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Host-side receiver of the {@link RtpSender} stream: depacketizes single NAL unit and FU-A
+ * packets back into Annex-B access units, restores single lost packets from parity packets and
+ * simulates packet loss with {@link #setDropInterval}.
+ * <p>
+ * Access units are kept by RTP timestamp, frames with missing packets are counted as lost. Can be
+ * run on its own to receive a stream from a device:
+ * <pre>
+ *   java com.yanghaoyi.androidautomotive.RtpTestReceiver &lt;port&gt; &lt;seconds&gt;
+ * </pre>
+ */
+class RtpTestReceiver implements Runnable {
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    private final DatagramChannel mChannel;
+    private final boolean mFecEnabled;
+    private int mDropInterval;
+    private Thread mThread;
+
+    // Accessed only from the receiver thread.
+    private final List<byte[]> mFecGroup = new ArrayList<>();
+    private final ByteArrayOutputStream mAccessUnit = new ByteArrayOutputStream();
+    private int mExpectedSequenceNumber = -1;
+    private boolean mCorrupted;
+
+    private final Map<Integer, byte[]> mAccessUnits = new HashMap<>();
+    volatile long packets;
+    volatile long packetsDropped;
+    volatile long packetsRecovered;
+    volatile long fecPackets;
+    volatile long sequenceGaps;
+    volatile long framesReceived;
+    volatile long framesLost;
+
+    /** @param fecEnabled true if the sender sends parity packets */
+    RtpTestReceiver(int port, boolean fecEnabled) throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        mChannel.bind(new InetSocketAddress(port));
+        mFecEnabled = fecEnabled;
+    }
+
+    /** Drops every {@code interval}th packet as if it was lost on the network, 0 drops none. */
+    RtpTestReceiver setDropInterval(int interval) {
+        mDropInterval = interval;
+        return this;
+    }
+
+    int getLocalPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    void start() {
+        mThread = new Thread(this, "RtpTestReceiver");
+        mThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        mThread.interrupt();
+        mThread.join();
+    }
+
+    /**
+     * Waits until the receiver has received {@code count} packets in total, including dropped
+     * ones.
+     *
+     * @return false if it didn't receive them in time
+     */
+    synchronized boolean awaitPackets(long count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (packets < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /** Returns the access unit with the given RTP timestamp or null if it was not received. */
+    synchronized byte[] getAccessUnit(int timestamp) {
+        return mAccessUnits.get(timestamp);
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (!Thread.interrupted()) {
+                buffer.clear();
+                mChannel.receive(buffer);
+                buffer.flip();
+                byte[] packet = new byte[buffer.remaining()];
+                buffer.get(packet);
+                boolean drop = mDropInterval > 0 && (packets + 1) % mDropInterval == 0;
+                if (drop) {
+                    packetsDropped++;
+                } else {
+                    onPacket(packet);
+                }
+                // Counted last, so all other counters are final once awaitPackets() returns.
+                synchronized (this) {
+                    packets++;
+                    notifyAll();
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            // Stopped.
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private void onPacket(byte[] packet) {
+        if ((packet[1] & 0x7f) == RtpSender.PAYLOAD_TYPE_FEC) {
+            fecPackets++;
+            onFecPacket(packet);
+        } else if (mFecEnabled) {
+            // Held back until the parity packet of the group arrives.
+            mFecGroup.add(packet);
+        } else {
+            depacketize(packet);
+        }
+    }
+
+    private void onFecPacket(byte[] fec) {
+        ByteBuffer header = ByteBuffer.wrap(fec, RtpSender.HEADER_LENGTH,
+                RtpSender.FEC_HEADER_LENGTH);
+        final int first = header.getShort() & 0xffff;
+        int count = header.get() & 0xff;
+        int markerPayloadType = header.get() & 0xff;
+        int timestamp = header.getInt();
+        int length = header.getShort() & 0xffff;
+        int payloadOffset = RtpSender.HEADER_LENGTH + RtpSender.FEC_HEADER_LENGTH;
+        byte[] payload = Arrays.copyOfRange(fec, payloadOffset, fec.length);
+
+        // Packets of earlier groups whose parity packet was lost are passed on as they are.
+        List<byte[]> group = new ArrayList<>();
+        boolean[] present = new boolean[count];
+        for (byte[] packet : mFecGroup) {
+            int index = (getSequenceNumber(packet) - first) & 0xffff;
+            if (index >= count) {
+                depacketize(packet);
+                continue;
+            }
+            group.add(packet);
+            present[index] = true;
+            markerPayloadType ^= packet[1] & 0xff;
+            timestamp ^= getTimestamp(packet);
+            int packetLength = packet.length - RtpSender.HEADER_LENGTH;
+            length ^= packetLength;
+            for (int i = 0; i < packetLength; i++) {
+                payload[i] ^= packet[RtpSender.HEADER_LENGTH + i];
+            }
+        }
+        mFecGroup.clear();
+
+        if (group.size() == count - 1) {
+            int missing = 0;
+            while (present[missing]) missing++;
+            ByteBuffer restored = ByteBuffer.allocate(RtpSender.HEADER_LENGTH + length);
+            restored.put((byte) (RtpSender.VERSION << 6));
+            restored.put((byte) markerPayloadType);
+            restored.putShort((short) (first + missing));
+            restored.putInt(timestamp);
+            restored.put(fec, 8, 4);  // SSRC
+            restored.put(payload, 0, length);
+            group.add(restored.array());
+            packetsRecovered++;
+        }
+        Collections.sort(group, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return Integer.compare((getSequenceNumber(a) - first) & 0xffff,
+                        (getSequenceNumber(b) - first) & 0xffff);
+            }
+        });
+        for (byte[] packet : group) {
+            depacketize(packet);
+        }
+    }
+
+    private void depacketize(byte[] packet) {
+        int sequenceNumber = getSequenceNumber(packet);
+        if (mExpectedSequenceNumber != -1 && sequenceNumber != mExpectedSequenceNumber) {
+            sequenceGaps++;
+            mCorrupted = true;
+        }
+        mExpectedSequenceNumber = (sequenceNumber + 1) & 0xffff;
+
+        int offset = RtpSender.HEADER_LENGTH;
+        int nalType = packet[offset] & 0x1f;
+        if (nalType >= 1 && nalType <= 23) {
+            mAccessUnit.write(START_CODE, 0, START_CODE.length);
+            mAccessUnit.write(packet, offset, packet.length - offset);
+        } else if (nalType == RtpSender.NAL_TYPE_FU_A) {
+            int fuHeader = packet[offset + 1] & 0xff;
+            if ((fuHeader & 0x80) != 0) {
+                mAccessUnit.write(START_CODE, 0, START_CODE.length);
+                mAccessUnit.write((packet[offset] & 0xe0) | (fuHeader & 0x1f));
+            }
+            offset += RtpSender.FU_A_HEADER_LENGTH;
+            mAccessUnit.write(packet, offset, packet.length - offset);
+        } else {
+            mCorrupted = true;
+        }
+
+        if ((packet[1] & 0x80) != 0) {
+            if (mCorrupted) {
+                framesLost++;
+            } else {
+                synchronized (this) {
+                    mAccessUnits.put(getTimestamp(packet), mAccessUnit.toByteArray());
+                }
+                framesReceived++;
+            }
+            mAccessUnit.reset();
+            mCorrupted = false;
+        }
+    }
+
+    private static int getSequenceNumber(byte[] packet) {
+        return ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+    }
+
+    private static int getTimestamp(byte[] packet) {
+        return ByteBuffer.wrap(packet, 4, 4).getInt();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "packets: " + packets
+                + ", packetsDropped: " + packetsDropped
+                + ", packetsRecovered: " + packetsRecovered
+                + ", fecPackets: " + fecPackets
+                + ", sequenceGaps: " + sequenceGaps
+                + ", framesReceived: " + framesReceived
+                + ", framesLost: " + framesLost
+                + "}";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: RtpTestReceiver <port> <seconds> [fec]");
+            System.exit(1);
+        }
+        RtpTestReceiver receiver = new RtpTestReceiver(Integer.parseInt(args[0]),
+                args.length > 2 && "fec".equals(args[2]));
+        receiver.start();
+        Thread.sleep(Long.parseLong(args[1]) * 1000);
+        receiver.stop();
+        System.out.println(receiver);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a fixed number of frames from {@link SyntheticFrameSource} to a mix of local clients
+ * through the real {@link StreamServer} and {@link SelectorTransport} and checks that slow and
+ * reconnecting clients don't affect the others. Frames are produced as fast as the normal clients
+ * take them, so the checks don't depend on timing, see {@link StreamLoadGenerator} for timed runs.
+ */
+public class SelectorTransportLoadTest {
+    private static final int FPS = 25;
+    private static final int FRAME_COUNT = 100;
+    private static final int KEY_FRAME_INTERVAL = 25;
+    private static final long TIMEOUT_MS = 10000;
+
+    private SyntheticFrameSource mSource;
+    private final List<StreamTestClient> mClients = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (StreamTestClient client : mClients) {
+            client.stop();
+        }
+        if (mSource != null) {
+            mSource.stop();
+        }
+    }
+
+    @Test
+    public void rawStream_slowClients() throws Exception {
+        runWithSlowClients(StreamProtocol.WIRE_FORMAT_RAW);
+    }
+
+    @Test
+    public void framedStream_slowClients() throws Exception {
+        List<StreamTestClient> normalClients = runWithSlowClients(
+                StreamProtocol.WIRE_FORMAT_FRAMED);
+
+        for (StreamTestClient client : normalClients) {
+            assertEquals(client.toString(), 0, client.sequenceGaps);
+        }
+    }
+
+    @Test
+    public void framedStream_reconnectingClient() throws Exception {
+        InetSocketAddress address = openServer(StreamProtocol.WIRE_FORMAT_FRAMED,
+                new StreamStats());
+        StreamTestClient client = new StreamTestClient("reconnecting", address,
+                StreamProtocol.WIRE_FORMAT_FRAMED, FPS);
+        mClients.add(client);
+
+        int expectedFrames = 0;
+        for (int i = 0; i < 3; i++) {
+            client.start();
+            List<StreamReceiver> receivers = mSource.awaitReceivers(1, TIMEOUT_MS);
+            mSource.produceFrames(10, receivers, TIMEOUT_MS);
+            // Every reconnect starts with the replayed last key frame.
+            expectedFrames += i == 0 ? 10 : 11;
+            assertTrue(client.toString(), client.awaitFrames(expectedFrames, TIMEOUT_MS));
+            client.stop();
+        }
+
+        assertEquals(client.toString(), 3, client.connections);
+        assertEquals(client.toString(), expectedFrames, client.frames);
+        assertEquals(client.toString(), 0, client.badStreamStarts);
+        assertEquals(client.toString(), 0, client.sequenceGaps);
+    }
+
+    @Test
+    public void framedStream_feedback() throws Exception {
+        StreamStats stats = new StreamStats();
+        InetSocketAddress address = openServer(StreamProtocol.WIRE_FORMAT_FRAMED, stats);
+        StreamTestClient client = startClient(new StreamTestClient("feedback", address,
+                StreamProtocol.WIRE_FORMAT_FRAMED, FPS));
+        List<StreamReceiver> receivers = mSource.awaitReceivers(1, TIMEOUT_MS);
+        mSource.produceFrames(KEY_FRAME_INTERVAL, receivers, TIMEOUT_MS);
+        assertTrue(client.toString(), client.awaitFrames(KEY_FRAME_INTERVAL, TIMEOUT_MS));
+
+        client.sendMessage(StreamProtocol.createLossReport(5, 2));
+        client.sendMessage(StreamProtocol.createKeyFrameRequest());
+        client.sendMessage(StreamProtocol.createPing(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime()), 0));
+        // Messages are handled in order, so the others have been counted once the pong is back.
+        assertTrue(client.toString(), client.awaitPongs(1, TIMEOUT_MS));
+
+        assertEquals("lossReports", 1, stats.lossReports.get());
+        assertEquals("keyFrameRequests", 1, stats.keyFrameRequests.get());
+        assertEquals(client.toString(), 1, client.pongs);
+        assertEquals(client.toString(), 1, client.rtt.getCount());
+        assertEquals(client.toString(), 0, client.sequenceGaps);
+        assertEquals(client.toString(), 0, client.lossReportsSent);
+    }
+
+    /**
+     * Streams {@link #FRAME_COUNT} frames to three normal and two slow clients, returns the normal
+     * ones once they received all frames.
+     */
+    private List<StreamTestClient> runWithSlowClients(int wireFormat) throws Exception {
+        InetSocketAddress address = openServer(wireFormat, new StreamStats());
+        List<StreamTestClient> normalClients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            normalClients.add(startClient(new StreamTestClient("normal-" + i, address,
+                    wireFormat, FPS)));
+        }
+        // Frames are produced as fast as the normal clients take them.
+        List<StreamReceiver> pacingReceivers = mSource.awaitReceivers(3, TIMEOUT_MS);
+        for (int i = 0; i < 2; i++) {
+            startClient(new StreamTestClient("slow-" + i, address, wireFormat, FPS)
+                    .setReadDelay(StreamLoadGenerator.SLOW_READ_SIZE,
+                            StreamLoadGenerator.SLOW_READ_DELAY_MS));
+        }
+        mSource.awaitReceivers(2, TIMEOUT_MS);
+
+        mSource.produceFrames(FRAME_COUNT, pacingReceivers, TIMEOUT_MS);
+
+        for (StreamTestClient client : normalClients) {
+            assertTrue(client.toString(), client.awaitFrames(FRAME_COUNT, TIMEOUT_MS));
+            assertEquals(client.toString(), FRAME_COUNT, client.frames);
+            assertEquals(client.toString(), FRAME_COUNT / KEY_FRAME_INTERVAL, client.keyFrames);
+            assertEquals(client.toString(), 1, client.connections);
+        }
+        for (StreamTestClient client : mClients) {
+            assertEquals(client.toString(), 0, client.badStreamStarts);
+        }
+        return normalClients;
+    }
+
+    private InetSocketAddress openServer(int wireFormat, StreamStats stats) throws Exception {
+        mSource = new SyntheticFrameSource(SyntheticFrameSource.createAccessUnits(
+                FRAME_COUNT, KEY_FRAME_INTERVAL, 16 * 1024, 64 * 1024), FPS);
+        StreamServer server = mSource.openServer(0, wireFormat, stats);
+        return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    private StreamTestClient startClient(StreamTestClient client) {
+        mClients.add(client);
+        client.start();
+        return client;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a mix of normal, slow and flapping {@link StreamTestClient}s to a cluster stream and
+ * reports what every client observed. Frames arrive in real time, so this is meant for manual
+ * runs, {@link SelectorTransportLoadTest} checks the same mix with a fixed number of frames.
+ * <p>
+ * Can be run from the command line against a device (after {@code adb forward tcp:5151 tcp:5151})
+ * or against a local {@link SyntheticFrameSource}, streaming generated frames ({@code fake}) or
+ * replaying an Annex-B file, e.g. a segment recorded by {@link StreamRecorder}:
+ * <pre>
+ * StreamLoadGenerator &lt;host|fake|file.h264&gt; &lt;port&gt; &lt;raw|framed&gt;
+ *         &lt;normal&gt; &lt;slow&gt; &lt;flapping&gt; &lt;seconds&gt;
+ * </pre>
+ */
+class StreamLoadGenerator {
+    private static final int NOMINAL_FPS = 25;
+
+    /** Slow clients read 4KB every 20ms, i.e. about 200KB/s. */
+    static final int SLOW_READ_SIZE = 4 * 1024;
+    static final long SLOW_READ_DELAY_MS = 20;
+    /** Flapping clients stay connected for 700ms and reconnect 300ms later. */
+    private static final long FLAPPING_CONNECTED_MS = 700;
+    private static final long FLAPPING_DISCONNECTED_MS = 300;
+
+    final List<StreamTestClient> normalClients = new ArrayList<>();
+    final List<StreamTestClient> slowClients = new ArrayList<>();
+    final List<StreamTestClient> flappingClients = new ArrayList<>();
+
+    StreamLoadGenerator(InetSocketAddress address, int wireFormat, int normal, int slow,
+            int flapping) {
+        for (int i = 0; i < normal; i++) {
+            normalClients.add(new StreamTestClient("normal-" + i, address, wireFormat,
+                    NOMINAL_FPS));
+        }
+        for (int i = 0; i < slow; i++) {
+            slowClients.add(new StreamTestClient("slow-" + i, address, wireFormat, NOMINAL_FPS)
+                    .setReadDelay(SLOW_READ_SIZE, SLOW_READ_DELAY_MS));
+        }
+        for (int i = 0; i < flapping; i++) {
+            flappingClients.add(new StreamTestClient("flapping-" + i, address, wireFormat,
+                    NOMINAL_FPS).setFlapping(FLAPPING_CONNECTED_MS, FLAPPING_DISCONNECTED_MS));
+        }
+    }
+
+    List<StreamTestClient> getClients() {
+        List<StreamTestClient> clients = new ArrayList<>(normalClients);
+        clients.addAll(slowClients);
+        clients.addAll(flappingClients);
+        return clients;
+    }
+
+    /** Runs all clients for the given time and stops them. */
+    void run(long durationMs) throws InterruptedException {
+        for (StreamTestClient client : getClients()) {
+            client.start();
+        }
+        Thread.sleep(durationMs);
+        for (StreamTestClient client : getClients()) {
+            client.stop();
+        }
+    }
+
+    void printReport() {
+        for (StreamTestClient client : getClients()) {
+            System.out.println(client);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 7) {
+            System.err.println("Usage: StreamLoadGenerator <host|fake|file.h264> <port>"
+                    + " <raw|framed> <normal> <slow> <flapping> <seconds>");
+            System.exit(1);
+        }
+        int wireFormat = "framed".equals(args[2])
+                ? StreamProtocol.WIRE_FORMAT_FRAMED : StreamProtocol.WIRE_FORMAT_RAW;
+
+        SyntheticFrameSource source = null;
+        StreamStats stats = new StreamStats();
+        InetSocketAddress address;
+        if ("fake".equals(args[0]) || args[0].endsWith(".h264")) {
+            source = new SyntheticFrameSource("fake".equals(args[0])
+                    ? SyntheticFrameSource.createAccessUnits(250, 50, 20 * 1024, 80 * 1024)
+                    : SyntheticFrameSource.readAccessUnits(args[0]), NOMINAL_FPS);
+            StreamServer server = source.startServer(Integer.parseInt(args[1]), wireFormat,
+                    stats);
+            address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        } else {
+            address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        }
+
+        StreamLoadGenerator generator = new StreamLoadGenerator(address, wireFormat,
+                Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+        generator.run(TimeUnit.SECONDS.toMillis(Long.parseLong(args[6])));
+        generator.printReport();
+
+        if (source != null) {
+            System.out.println(source);
+            PrintWriter writer = new PrintWriter(System.out);
+            stats.dump(writer);
+            writer.flush();
+            source.stop();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the host independent stages of the cluster streaming pipeline: framing a
+ * frame, queueing it to receivers and writing it to a socket. Receivers are local sockets drained
+ * by reader threads.
+ * <p>
+ * Run {@link #main} with the unit test class path, e.g. from the IDE.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamPipelineBenchmark {
+
+    @State(Scope.Thread)
+    public static class FramingState {
+        final StreamProtocol.Header header = new StreamProtocol.Header();
+        EncodedFrame frame;
+        int sequenceNumber;
+
+        @Setup
+        public void setUp() {
+            frame = EncodedFrame.copyOf(ByteBuffer.allocate(16 * 1024), 0, 0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class QueueingState {
+        @Param({"1", "4", "16"})
+        public int receivers;
+
+        final List<Drain> drains = new ArrayList<>();
+        SelectorTransport transport;
+        EncodedFrame frame;
+
+        @Setup
+        public void setUp() throws Exception {
+            SelectorTransport.Listener listener = new SelectorTransport.Listener() {
+                @Override
+                public void onReceiverConnected(StreamReceiver receiver) {}
+
+                @Override
+                public void onReceiverDisconnected(StreamReceiver receiver, IOException cause) {}
+
+                @Override
+                public void onTransportError(IOException e) {}
+
+                @Override
+                public void onReceiverMessage(StreamReceiver receiver,
+                        StreamProtocol.Message message) {}
+            };
+            transport = new SelectorTransport(0, StreamProtocol.WIRE_FORMAT_FRAMED, listener,
+                    new StreamStats());
+            transport.start();
+            for (int i = 0; i < receivers; i++) {
+                drains.add(Drain.connect(transport.getLocalPort()));
+            }
+            while (transport.getReceiverCount() < receivers) {
+                Thread.sleep(10);
+            }
+            for (StreamReceiver receiver : transport.getReceivers()) {
+                receiver.setStarted(true);
+            }
+
+            ByteBuffer data = ByteBuffer.allocateDirect(16 * 1024);
+            EncodedFrame keyFrame = EncodedFrame.copyInto(data,
+                    ByteBuffer.allocate(data.capacity()), 0, EncodedFrame.FLAG_KEY_FRAME, null);
+            transport.publish(keyFrame);
+            keyFrame.release();
+            frame = EncodedFrame.copyInto(ByteBuffer.allocateDirect(data.capacity()),
+                    ByteBuffer.allocate(data.capacity()), 0, 0, null);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            transport.close();
+            for (Drain drain : drains) {
+                drain.close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SocketWriteState {
+        @Param({"1024", "16384", "131072"})
+        public int frameSize;
+
+        ServerSocketChannel serverChannel;
+        Drain drain;
+        StreamReceiver receiver;
+        EncodedFrame frame;
+
+        @Setup
+        public void setUp() throws IOException {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            drain = Drain.connect(serverChannel.socket().getLocalPort());
+            // Blocking, so every write() completes the frame like a receiver that keeps up.
+            receiver = new StreamReceiver(serverChannel.accept(),
+                    StreamProtocol.WIRE_FORMAT_FRAMED, new StreamStats());
+            frame = EncodedFrame.copyInto(ByteBuffer.allocateDirect(frameSize),
+                    ByteBuffer.allocate(frameSize), 0, 0, null);
+            frame.setHeader(StreamProtocol.createHeader(frame, 0));
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            receiver.close();
+            drain.close();
+            serverChannel.close();
+        }
+    }
+
+    /** Creates a frame header and parses it back. */
+    @Benchmark
+    public boolean framing(FramingState state) {
+        ByteBuffer header = StreamProtocol.createHeader(state.frame, state.sequenceNumber++);
+        return StreamProtocol.readHeader(header, state.header);
+    }
+
+    /**
+     * Publishes a frame to all receivers and waits for the transport thread to write it to all of
+     * them, i.e. the hand-off latency from the source thread to the sockets. Waiting keeps
+     * receiver queues from filling up, so no frames are dropped.
+     */
+    @Benchmark
+    public int queueing(QueueingState state) {
+        int dropped = state.transport.publish(state.frame);
+        for (StreamReceiver receiver : state.transport.getReceivers()) {
+            while (receiver.hasBacklog()) {
+                Thread.yield();
+            }
+        }
+        return dropped;
+    }
+
+    /** Queues a frame with header to a single receiver and writes it to the socket. */
+    @Benchmark
+    public boolean socketWrite(SocketWriteState state) throws IOException {
+        state.frame.markQueued(System.nanoTime());
+        state.receiver.offer(state.frame);
+        return state.receiver.write();
+    }
+
+    /** Local receiver that discards everything it reads. */
+    static class Drain implements Runnable {
+        private final SocketChannel mChannel;
+        private final Thread mThread;
+
+        private Drain(SocketChannel channel) {
+            mChannel = channel;
+            mThread = new Thread(this, "Drain");
+            mThread.start();
+        }
+
+        static Drain connect(int port) throws IOException {
+            return new Drain(SocketChannel.open(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (mChannel.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        void close() throws Exception {
+            mChannel.close();
+            mThread.join();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StreamPipelineBenchmark.class.getSimpleName())
+                .build())
+                .run();
+    }
+}
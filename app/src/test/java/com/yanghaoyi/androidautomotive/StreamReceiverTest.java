@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Checks the drop policy of the {@link StreamReceiver} send queue and message parsing. */
+public class StreamReceiverTest {
+    private static final int MAX_QUEUED_FRAMES = 8;
+    private static final long TIMEOUT_MS = 5000;
+
+    private StreamStats mStats;
+    private StreamReceiver mReceiver;
+    private int mRecycled;
+
+    private final EncodedFrame.Recycler mRecycler = new EncodedFrame.Recycler() {
+        @Override
+        public void recycle(EncodedFrame frame) {
+            mRecycled++;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mStats = new StreamStats();
+        mReceiver = new StreamReceiver(SocketChannel.open(), StreamProtocol.WIRE_FORMAT_FRAMED,
+                mStats);
+        mReceiver.setAwaitingKeyFrame(false);
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.close();
+    }
+
+    @Test
+    public void disposableFramesDroppedFirst() {
+        int queued = 0;
+        for (int i = 0; i < MAX_QUEUED_FRAMES; i++) {
+            if (offer(EncodedFrame.FLAG_DISPOSABLE)) queued++;
+        }
+        assertEquals(MAX_QUEUED_FRAMES / 2, queued);
+
+        assertTrue(offer(0));
+        assertEquals(MAX_QUEUED_FRAMES / 2, mStats.disposableFramesDropped.get());
+        assertEquals(0, mStats.referenceFramesDropped.get());
+        assertFalse(mReceiver.takeKeyFrameNeeded());
+    }
+
+    @Test
+    public void fullQueue_skipsToKeyFrame() {
+        for (int i = 0; i < MAX_QUEUED_FRAMES; i++) {
+            assertTrue(offer(0));
+        }
+
+        assertFalse(offer(0));
+        assertTrue(mReceiver.isAwaitingKeyFrame());
+        assertTrue(mReceiver.takeKeyFrameNeeded());
+        assertFalse(mReceiver.takeKeyFrameNeeded());
+        assertEquals(1, mStats.referenceFramesDropped.get());
+        assertEquals(1, mRecycled);
+    }
+
+    @Test
+    public void keyFrame_replacesQueuedFramesExceptCodecConfig() {
+        for (int i = 0; i < MAX_QUEUED_FRAMES - 1; i++) {
+            assertTrue(offer(0));
+        }
+        assertTrue(offer(EncodedFrame.FLAG_CODEC_CONFIG));
+        assertTrue(offer(EncodedFrame.FLAG_CODEC_CONFIG));
+
+        assertTrue(offer(EncodedFrame.FLAG_KEY_FRAME));
+        assertEquals(3, mReceiver.getQueuedFrameCount());
+        assertEquals(MAX_QUEUED_FRAMES - 1, mStats.framesDropped.get());
+        assertEquals(MAX_QUEUED_FRAMES - 1, mRecycled);
+
+        mReceiver.close();
+        assertEquals(MAX_QUEUED_FRAMES + 2, mRecycled);
+    }
+
+    @Test
+    public void hasBorrowedFrames_untilReleased() {
+        EncodedFrame copy = EncodedFrame.copyOf(ByteBuffer.allocate(16), 0, 0);
+        assertTrue(mReceiver.offer(copy));
+        copy.release();
+        assertFalse(mReceiver.hasBorrowedFrames());
+
+        assertTrue(offer(0));
+        assertTrue(mReceiver.hasBorrowedFrames());
+
+        mReceiver.close();
+        assertFalse(mReceiver.hasBorrowedFrames());
+        assertEquals(1, mRecycled);
+    }
+
+    @Test
+    public void read_helloSplitAcrossReads() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+                Selector selector = Selector.open()) {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            StreamReceiver receiver = new StreamReceiver(channel,
+                    StreamProtocol.WIRE_FORMAT_FRAMED, mStats);
+            List<StreamProtocol.Message> messages = new ArrayList<>();
+
+            ByteBuffer hello = StreamProtocol.createHello(640, 360, 160);
+            ByteBuffer first = hello.duplicate();
+            first.limit(10);
+            client.write(first);
+            assertTrue(readWhenReady(selector, receiver, messages));
+            assertEquals(0, messages.size());
+            assertFalse(receiver.hasPreferredSize());
+
+            hello.position(10);
+            client.write(hello);
+            while (messages.isEmpty()) {
+                assertTrue(readWhenReady(selector, receiver, messages));
+            }
+            assertEquals(1, messages.size());
+            assertEquals(StreamProtocol.MESSAGE_HELLO, messages.get(0).type);
+            assertEquals(640, receiver.getPreferredWidth());
+            assertEquals(360, receiver.getPreferredHeight());
+            assertEquals(160, receiver.getPreferredDpi());
+
+            client.close();
+            assertFalse(readWhenReady(selector, receiver, messages));
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void read_rawFormat_invalidDataIgnored() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+                Selector selector = Selector.open()) {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            StreamReceiver receiver = new StreamReceiver(channel, StreamProtocol.WIRE_FORMAT_RAW,
+                    mStats);
+            List<StreamProtocol.Message> messages = new ArrayList<>();
+
+            // Raw receivers may predate messages, e.g. send a request line of their own.
+            byte[] request = "CLUSTER STREAM\r\n".getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer keyFrameRequest = StreamProtocol.createKeyFrameRequest();
+            ByteBuffer data = ByteBuffer.allocate(request.length + keyFrameRequest.remaining());
+            data.put(request).put(keyFrameRequest).flip();
+            client.write(data);
+            while (messages.isEmpty()) {
+                assertTrue(readWhenReady(selector, receiver, messages));
+            }
+            assertEquals(1, messages.size());
+            assertEquals(StreamProtocol.MESSAGE_KEY_FRAME_REQUEST, messages.get(0).type);
+            assertFalse(receiver.isClosed());
+
+            client.close();
+            assertFalse(readWhenReady(selector, receiver, messages));
+            receiver.close();
+        }
+    }
+
+    /** Waits until the channel is readable, the same as the transport thread, and reads. */
+    private static boolean readWhenReady(Selector selector, StreamReceiver receiver,
+            List<StreamProtocol.Message> messages) throws IOException {
+        assertTrue("Nothing to read", selector.select(TIMEOUT_MS) > 0);
+        selector.selectedKeys().clear();
+        return receiver.read(messages);
+    }
+
+    private boolean offer(int flags) {
+        EncodedFrame frame = EncodedFrame.wrap(ByteBuffer.allocate(16), 0, flags, mRecycler, 0);
+        boolean queued = mReceiver.offer(frame);
+        frame.release();
+        return queued;
+    }
+}
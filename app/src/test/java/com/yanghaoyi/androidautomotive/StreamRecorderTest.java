@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Records synthetic access units with {@link StreamRecorder} and checks the segment files left.
+ * Segments are written right away on the test thread, so none is skipped.
+ */
+public class StreamRecorderTest {
+    private static final int FRAME_COUNT = 100;
+    private static final int KEY_FRAME_INTERVAL = 25;
+    private static final int FRAME_SIZE = 1000;
+    private static final int KEY_FRAME_SIZE = 5000;
+    private static final int SEGMENT_COUNT = 2;
+
+    private static final FrameSource SOURCE = new FrameSource() {
+        @Override
+        public void requestSyncFrame() {}
+
+        @Override
+        public void setBitrate(int bitrate) {}
+    };
+
+    private static final Executor DIRECT_WRITER = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<EncodedFrame> mAccessUnits = SyntheticFrameSource.createAccessUnits(
+            FRAME_COUNT, KEY_FRAME_INTERVAL, FRAME_SIZE, KEY_FRAME_SIZE);
+    private File mDirectory;
+
+    @After
+    public void tearDown() {
+        for (EncodedFrame frame : mAccessUnits) {
+            frame.release();
+        }
+        File[] files = mDirectory != null ? mDirectory.listFiles() : null;
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+            mDirectory.delete();
+        }
+    }
+
+    @Test
+    public void segmentPerKeyFrame_lastSegmentsKept() throws Exception {
+        mDirectory = Files.createTempDirectory("StreamRecorderTest").toFile();
+        // Zero duration starts a new segment on every key frame.
+        StreamRecorder recorder = new StreamRecorder(mDirectory, "h264", SEGMENT_COUNT,
+                64 * 1024, 0 /* segmentDurationMs */, SOURCE, DIRECT_WRITER);
+        recorder.start();
+        for (EncodedFrame frame : mAccessUnits) {
+            recorder.onFrame(frame);
+        }
+        recorder.stop();
+        assertNull(recorder.getError());
+
+        byte[] codecConfig = bytes(mAccessUnits.get(0).data());
+        int segmentLength = codecConfig.length + KEY_FRAME_SIZE
+                + (KEY_FRAME_INTERVAL - 1) * FRAME_SIZE;
+        int segments = FRAME_COUNT / KEY_FRAME_INTERVAL;
+        for (int i = 0; i < segments; i++) {
+            File file = new File(mDirectory, "cluster-" + i + ".h264");
+            if (i < segments - SEGMENT_COUNT) {
+                assertFalse(file.toString(), file.exists());
+                continue;
+            }
+            byte[] data = Files.readAllBytes(file.toPath());
+            assertEquals(file.toString(), segmentLength, data.length);
+            assertArrayEquals(file.toString(), codecConfig,
+                    Arrays.copyOf(data, codecConfig.length));
+        }
+        assertFalse(new File(mDirectory, "recording-0").exists());
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain Java receiver of the networked cluster stream, used to test the streaming path without a
+ * device or a video decoder.
+ * <p>
+ * Parses either wire format and measures frame rate, inter-arrival jitter (RFC 3550 style, against
+ * presentation time in framed format and the nominal frame interval in raw format) and
+ * bytes/sec. In raw format every AVC slice NAL unit is counted as a frame, which holds for
+ * single-slice encoders and generated {@link SyntheticFrameSource} streams.
+ * <p>
+ * Slow clients are simulated with {@link #setReadDelay}, flapping clients with
+ * {@link #setFlapping}, every reconnect checks the stream starts with codec config and a key
+ * frame. With {@link #setFeedback} the client measures round trip time with pings and reports
+ * sequence gaps as lost frames (framed format only).
+ * <p>
+ * The client may be stopped and started again, counters are kept across connections.
+ */
+class StreamTestClient implements Runnable {
+    private static final int NAL_TYPE_NON_IDR = 1;
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_AUD = 9;
+
+    private final String mName;
+    private final InetSocketAddress mAddress;
+    private final int mWireFormat;
+    private final long mNominalFrameIntervalUs;
+
+    private int mReadSize = 64 * 1024;
+    private long mReadDelayMs;
+    private long mConnectedMs;
+    private long mDisconnectedMs;
+    private ByteBuffer mHello;
+    private long mPingIntervalNanos;
+
+    private volatile boolean mStopped;
+    private Thread mThread;
+
+    // Written by the client thread, read once it has been stopped.
+    final LatencyHistogram interArrival = new LatencyHistogram();
+    final LatencyHistogram rtt = new LatencyHistogram();
+    volatile long lossReportsSent;
+    volatile long pongs;
+    volatile long frames;
+    volatile long keyFrames;
+    volatile long keepalives;
+    volatile long bytes;
+    volatile long connections;
+    volatile long sequenceGaps;
+    /** Connections where the first frame was not codec config followed by a key frame. */
+    volatile long badStreamStarts;
+    volatile long jitterUs;
+    private volatile long mStartNanos;
+    private volatile long mStopNanos;
+
+    // Parser state, reset on every connection.
+    private final ByteBuffer mFramedBuffer = ByteBuffer.allocate(1024 * 1024);
+    private final StreamProtocol.Header mHeader = new StreamProtocol.Header();
+    private volatile SocketChannel mChannel;
+    private long mLastPingNanos;
+    private int mLastRttUs;
+    private int mPayloadRemaining;
+    private int mZeros;
+    private boolean mNalHeaderNext;
+    private int mFramesInConnection;
+    private boolean mSawCodecConfig;
+    private int mExpectedSequenceNumber;
+    // Numbering starts with the first live frame of a connection.
+    private boolean mSequenceStarted;
+    private long mLastArrivalNanos;
+    private long mLastSendTimeUs;
+    private double mJitterUs;
+
+    StreamTestClient(String name, InetSocketAddress address, int wireFormat, int nominalFps) {
+        mName = name;
+        mAddress = address;
+        mWireFormat = wireFormat;
+        mNominalFrameIntervalUs = TimeUnit.SECONDS.toMicros(1) / nominalFps;
+    }
+
+    /** Reads at most {@code readSize} bytes every {@code delayMs}. */
+    StreamTestClient setReadDelay(int readSize, long delayMs) {
+        mReadSize = readSize;
+        mReadDelayMs = delayMs;
+        return this;
+    }
+
+    /** Advertises preferred display size after connecting, see {@link StreamProtocol}. */
+    StreamTestClient setPreferredSize(int width, int height, int dpi) {
+        mHello = StreamProtocol.createHello(width, height, dpi);
+        return this;
+    }
+
+    /** Sends a ping every {@code pingIntervalMs} and loss reports for sequence gaps. */
+    StreamTestClient setFeedback(long pingIntervalMs) {
+        mPingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMs);
+        return this;
+    }
+
+    /** Disconnects after {@code connectedMs} and reconnects after {@code disconnectedMs}. */
+    StreamTestClient setFlapping(long connectedMs, long disconnectedMs) {
+        mConnectedMs = connectedMs;
+        mDisconnectedMs = disconnectedMs;
+        return this;
+    }
+
+    void start() {
+        mStopped = false;
+        mStartNanos = System.nanoTime();
+        mThread = new Thread(this, "StreamTestClient-" + mName);
+        mThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        mStopped = true;
+        mThread.interrupt();
+        mThread.join();
+        mStopNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until the client has received {@code count} frames in total.
+     *
+     * @return false if it didn't receive them in time
+     */
+    synchronized boolean awaitFrames(long count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (frames < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the client has received {@code count} pongs in total.
+     *
+     * @return false if it didn't receive them in time
+     */
+    synchronized boolean awaitPongs(long count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (pongs < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Sends a message created by {@link StreamProtocol} on the current connection, must not be
+     * used together with {@link #setFeedback}.
+     */
+    void sendMessage(ByteBuffer message) {
+        send(message);
+    }
+
+    @Override
+    public void run() {
+        while (!mStopped) {
+            try {
+                receive();
+            } catch (IOException e) {
+                if (mStopped) return;
+            }
+            if (mDisconnectedMs > 0 && !sleep(mDisconnectedMs)) return;
+        }
+    }
+
+    private void receive() throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().setReceiveBufferSize(mReadSize);
+            channel.connect(mAddress);
+            connections++;
+            mChannel = channel;
+            if (mHello != null) {
+                channel.write(mHello.duplicate());
+            }
+            resetParser();
+
+            long connectedAt = System.nanoTime();
+            ByteBuffer buffer = ByteBuffer.allocate(mReadSize);
+            while (!mStopped) {
+                if (mConnectedMs > 0 && System.nanoTime() - connectedAt
+                        > TimeUnit.MILLISECONDS.toNanos(mConnectedMs)) {
+                    return;
+                }
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read < 0) return;
+                bytes += read;
+                buffer.flip();
+                if (mWireFormat == StreamProtocol.WIRE_FORMAT_FRAMED) {
+                    parseFramed(buffer);
+                } else {
+                    parseRaw(buffer);
+                }
+                if (mPingIntervalNanos > 0
+                        && System.nanoTime() - mLastPingNanos >= mPingIntervalNanos) {
+                    mLastPingNanos = System.nanoTime();
+                    send(StreamProtocol.createPing(
+                            TimeUnit.NANOSECONDS.toMicros(mLastPingNanos), mLastRttUs));
+                }
+                if (mReadDelayMs > 0 && !sleep(mReadDelayMs)) return;
+            }
+        }
+    }
+
+    private void send(ByteBuffer message) {
+        try {
+            while (message.hasRemaining()) {
+                mChannel.write(message);
+            }
+        } catch (IOException e) {
+            // Reading fails as well then.
+        }
+    }
+
+    private void resetParser() {
+        mFramedBuffer.clear();
+        mPayloadRemaining = 0;
+        mZeros = 0;
+        mNalHeaderNext = false;
+        mFramesInConnection = 0;
+        mSequenceStarted = false;
+        mSawCodecConfig = false;
+        mLastArrivalNanos = 0;
+    }
+
+    private void parseFramed(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            if (mPayloadRemaining > 0) {
+                int skip = Math.min(mPayloadRemaining, data.remaining());
+                data.position(data.position() + skip);
+                mPayloadRemaining -= skip;
+                continue;
+            }
+            int chunk = Math.min(data.remaining(), mFramedBuffer.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + chunk);
+            mFramedBuffer.put(slice);
+            data.position(data.position() + chunk);
+
+            mFramedBuffer.flip();
+            while (StreamProtocol.readHeader(mFramedBuffer, mHeader)) {
+                onFramedHeader(mHeader);
+                int skip = Math.min(mHeader.payloadLength, mFramedBuffer.remaining());
+                mFramedBuffer.position(mFramedBuffer.position() + skip);
+                mPayloadRemaining = mHeader.payloadLength - skip;
+                if (mPayloadRemaining > 0) break;
+            }
+            mFramedBuffer.compact();
+        }
+    }
+
+    private void onFramedHeader(StreamProtocol.Header header) {
+        if (header.isKeepalive()) {
+            keepalives++;
+            return;
+        }
+        if (header.isPong()) {
+            long rttUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime())
+                    - header.presentationTimeUs;
+            rtt.record(rttUs);
+            mLastRttUs = (int) rttUs;
+            synchronized (this) {
+                pongs++;
+                notifyAll();
+            }
+            return;
+        }
+        if (!header.isReplayed()) {
+            if (mSequenceStarted && header.sequenceNumber != mExpectedSequenceNumber) {
+                sequenceGaps++;
+                if (mPingIntervalNanos > 0) {
+                    lossReportsSent++;
+                    send(StreamProtocol.createLossReport(mExpectedSequenceNumber,
+                            header.sequenceNumber - mExpectedSequenceNumber));
+                }
+            }
+            mSequenceStarted = true;
+            mExpectedSequenceNumber = header.sequenceNumber + 1;
+        }
+        if (header.isCodecConfig()) {
+            onCodecConfig();
+        } else {
+            onFrame(header.isKeyFrame(), header.presentationTimeUs);
+        }
+    }
+
+    /** Scans Annex-B data for start codes, only the NAL unit header byte is interpreted. */
+    private void parseRaw(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            int b = data.get() & 0xff;
+            if (mNalHeaderNext) {
+                mNalHeaderNext = false;
+                onNalUnit(b & 0x1f);
+            }
+            if (b == 0) {
+                mZeros++;
+            } else {
+                mNalHeaderNext = b == 1 && mZeros >= 2;
+                mZeros = 0;
+            }
+        }
+    }
+
+    private void onNalUnit(int type) {
+        switch (type) {
+            case NAL_TYPE_SPS:
+                onCodecConfig();
+                break;
+            case NAL_TYPE_IDR:
+            case NAL_TYPE_NON_IDR:
+                onFrame(type == NAL_TYPE_IDR, 0);
+                break;
+            case NAL_TYPE_AUD:
+                keepalives++;
+                break;
+        }
+    }
+
+    private void onCodecConfig() {
+        if (mFramesInConnection == 0) {
+            mSawCodecConfig = true;
+        }
+    }
+
+    private void onFrame(boolean keyFrame, long presentationTimeUs) {
+        if (mFramesInConnection++ == 0 && (!mSawCodecConfig || !keyFrame)) {
+            badStreamStarts++;
+        }
+        if (keyFrame) keyFrames++;
+        synchronized (this) {
+            frames++;
+            notifyAll();
+        }
+
+        long now = System.nanoTime();
+        long sendTimeUs = presentationTimeUs != 0
+                ? presentationTimeUs : mLastSendTimeUs + mNominalFrameIntervalUs;
+        if (mLastArrivalNanos != 0) {
+            long arrivalDeltaUs = TimeUnit.NANOSECONDS.toMicros(now - mLastArrivalNanos);
+            interArrival.record(arrivalDeltaUs);
+            long deviationUs = Math.abs(arrivalDeltaUs - (sendTimeUs - mLastSendTimeUs));
+            mJitterUs += (deviationUs - mJitterUs) / 16;
+            jitterUs = (long) mJitterUs;
+        }
+        mLastArrivalNanos = now;
+        mLastSendTimeUs = sendTimeUs;
+    }
+
+    private boolean sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    double getFps() {
+        long end = mStopNanos != 0 ? mStopNanos : System.nanoTime();
+        return frames * (double) TimeUnit.SECONDS.toNanos(1) / (end - mStartNanos);
+    }
+
+    long getBytesPerSecond() {
+        long end = mStopNanos != 0 ? mStopNanos : System.nanoTime();
+        return bytes * TimeUnit.SECONDS.toNanos(1) / (end - mStartNanos);
+    }
+
+    @Override
+    public String toString() {
+        return mName + "{"
+                + "fps: " + String.format("%.1f", getFps())
+                + ", bytes/sec: " + getBytesPerSecond()
+                + ", jitter: " + jitterUs + "us"
+                + ", frames: " + frames
+                + ", keyFrames: " + keyFrames
+                + ", keepalives: " + keepalives
+                + ", connections: " + connections
+                + ", sequenceGaps: " + sequenceGaps
+                + ", badStreamStarts: " + badStreamStarts
+                + ", interArrival: {" + interArrival + "}"
+                + (rtt.getCount() > 0 ? ", rtt: {" + rtt + "}" : "")
+                + (lossReportsSent > 0 ? ", lossReportsSent: " + lossReportsSent : "")
+                + (pongs > 0 ? ", pongs: " + pongs : "")
+                + "}";
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yanghaoyi.androidautomotive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link FrameSource} standing in for the encoder of {@link NetworkedVirtualDisplay}, so the
+ * streaming path can be exercised and benchmarked on the host JVM.
+ * <p>
+ * Replays a list of AVC access units at a fixed rate, in a loop: codec config first, then all
+ * other access units. Access units are either generated (see {@link #createAccessUnits}) or read
+ * from an Annex-B file, e.g. one recorded by {@link StreamRecorder} (see
+ * {@link #readAccessUnits}). Frames are handed out zero-copy from a fixed set of "output buffers"
+ * that only become available again once all sinks released them, like {@code MediaCodec} output
+ * buffers. A sync frame request skips ahead to the next key frame.
+ * <p>
+ * Frames are either produced at a fixed rate ({@link #startServer}), or on demand
+ * ({@link #openServer} and {@link #produceFrames}), so tests can check exact counts.
+ */
+class SyntheticFrameSource implements FrameSource {
+    private static final int OUTPUT_BUFFER_COUNT = 4;
+    private static final int NAL_TYPE_NON_IDR = 1;
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SEI = 6;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final int NAL_TYPE_AUD = 9;
+
+    /** Frames not produced because all output buffers were still held by sinks. */
+    final AtomicLong outputBufferStalls = new AtomicLong();
+    final AtomicLong framesProduced = new AtomicLong();
+    final AtomicLong syncFramesRequested = new AtomicLong();
+    volatile int bitrate;
+
+    private final List<EncodedFrame> mCodecConfigs = new ArrayList<>();
+    private final List<EncodedFrame> mAccessUnits = new ArrayList<>();
+    private final int mFps;
+
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[OUTPUT_BUFFER_COUNT];
+    private final AtomicIntegerArray mOutputBuffersInUse =
+            new AtomicIntegerArray(OUTPUT_BUFFER_COUNT);
+    private final EncodedFrame.Recycler mRecycler = new EncodedFrame.Recycler() {
+        @Override
+        public void recycle(EncodedFrame frame) {
+            mOutputBuffersInUse.set(frame.getBufferIndex(), 0);
+        }
+    };
+
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    // Transport events arriving once stop() shut down the executor are dropped.
+    private final Executor mServerExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            try {
+                mExecutor.execute(command);
+            } catch (RejectedExecutionException e) {
+                // Stopped.
+            }
+        }
+    };
+    private StreamServer mServer;
+    /** Receivers in the order they connected, see {@link #awaitReceivers}. */
+    private final List<StreamReceiver> mReceivers = new CopyOnWriteArrayList<>();
+    private final Semaphore mConnections = new Semaphore(0);
+
+    // Accessed only on the executor thread.
+    private FrameSink mSink;
+    private int mNextAccessUnit;
+    private boolean mSyncFrameRequested;
+
+    /**
+     * @param accessUnits codec config and access units to replay, not released by this class
+     */
+    SyntheticFrameSource(List<EncodedFrame> accessUnits, int fps) {
+        int maxSize = 0;
+        for (EncodedFrame unit : accessUnits) {
+            (unit.isCodecConfig() ? mCodecConfigs : mAccessUnits).add(unit);
+            maxSize = Math.max(maxSize, unit.size());
+        }
+        if (mAccessUnits.isEmpty()) {
+            throw new IllegalArgumentException("No access units to replay");
+        }
+        mFps = fps;
+        for (int i = 0; i < OUTPUT_BUFFER_COUNT; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(maxSize);
+        }
+    }
+
+    /** Executor running tasks on the thread frames are produced on. */
+    Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /** Sends codec config to the sink and starts producing frames. */
+    void start(FrameSink sink) {
+        open(sink);
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                produceFrame();
+            }
+        }, 0, TimeUnit.SECONDS.toMicros(1) / mFps, TimeUnit.MICROSECONDS);
+    }
+
+    /** Sends codec config to the sink, frames are only produced by {@link #produceFrames}. */
+    private void open(final FrameSink sink) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSink = sink;
+                for (EncodedFrame codecConfig : mCodecConfigs) {
+                    EncodedFrame frame = EncodedFrame.viewOf(codecConfig);
+                    mSink.onFrame(frame);
+                    frame.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a {@link StreamServer} fed by this source at a fixed rate on the given port, 0 picks a
+     * free port, see {@link StreamServer#getLocalPort()}. The server is closed by {@link #stop()}.
+     */
+    StreamServer startServer(int port, int wireFormat, StreamStats stats) throws IOException {
+        createServer(port, wireFormat, stats);
+        start(mServer);
+        return mServer;
+    }
+
+    /** Same as {@link #startServer}, but frames are only produced by {@link #produceFrames}. */
+    StreamServer openServer(int port, int wireFormat, StreamStats stats) throws IOException {
+        createServer(port, wireFormat, stats);
+        open(mServer);
+        return mServer;
+    }
+
+    private void createServer(int port, int wireFormat, StreamStats stats) throws IOException {
+        StreamServer.Listener listener = new StreamServer.Listener() {
+            @Override
+            public void onReceiverConnected(StreamReceiver receiver) {
+                mReceivers.add(receiver);
+                mConnections.release();
+            }
+
+            @Override
+            public void onReceiverDisconnected(StreamReceiver receiver, IOException cause) {}
+
+            @Override
+            public void onTransportError(IOException e) {
+                e.printStackTrace();
+            }
+
+            @Override
+            public void onReceiverMessage(StreamReceiver receiver,
+                    StreamProtocol.Message message) {}
+        };
+        mServer = new StreamServer(port, wireFormat, this, mServerExecutor, listener, stats);
+        mServer.start();
+    }
+
+    /**
+     * Waits for {@code count} more receivers to connect to the server and returns them. Their
+     * stream start has been queued once this returns.
+     *
+     * @throws TimeoutException if they didn't connect in time
+     */
+    List<StreamReceiver> awaitReceivers(int count, long timeoutMs)
+            throws InterruptedException, TimeoutException {
+        if (!mConnections.tryAcquire(count, timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException(count + " receivers didn't connect in " + timeoutMs + "ms");
+        }
+        // Connected receivers are added before the semaphore is released.
+        List<StreamReceiver> receivers = new ArrayList<>(mReceivers);
+        return receivers.subList(receivers.size() - count, receivers.size());
+    }
+
+    /**
+     * Produces {@code count} frames on the source thread and waits until they have been handed to
+     * the sink. Before every frame waits for an output buffer and until none of the
+     * {@code pacingReceivers} has frames left to write, so those receivers never drop a frame no
+     * matter how slowly the host runs.
+     *
+     * @throws TimeoutException if the frames haven't been produced in time
+     */
+    void produceFrames(final int count, final List<StreamReceiver> pacingReceivers,
+            final long timeoutMs) throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final AtomicInteger produced = new AtomicInteger();
+        Future<?> future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    int index;
+                    while (isPending(pacingReceivers) || (index = acquireOutputBuffer()) < 0) {
+                        if (System.nanoTime() > deadline || Thread.interrupted()) return;
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                    }
+                    produceFrame(index);
+                    produced.incrementAndGet();
+                }
+            }
+        });
+        try {
+            future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            future.cancel(true);
+        }
+        if (produced.get() < count) {
+            throw new TimeoutException(count + " frames not produced in " + timeoutMs + "ms");
+        }
+    }
+
+    private static boolean isPending(List<StreamReceiver> receivers) {
+        for (StreamReceiver receiver : receivers) {
+            if (!receiver.isClosed() && receiver.getPendingFrameCount() > 0) return true;
+        }
+        return false;
+    }
+
+    void stop() throws InterruptedException {
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        syncFramesRequested.incrementAndGet();
+        mSyncFrameRequested = true;
+    }
+
+    @Override
+    public void setBitrate(int bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    private void produceFrame() {
+        int index = acquireOutputBuffer();
+        if (index < 0) {
+            outputBufferStalls.incrementAndGet();
+            return;
+        }
+        produceFrame(index);
+    }
+
+    private void produceFrame(int index) {
+        if (mSyncFrameRequested) {
+            mSyncFrameRequested = false;
+            skipToKeyFrame();
+        }
+        EncodedFrame unit = mAccessUnits.get(mNextAccessUnit);
+        mNextAccessUnit = (mNextAccessUnit + 1) % mAccessUnits.size();
+
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        buffer.put(unit.data());
+        buffer.flip();
+
+        // Presentation time follows System.nanoTime() like surface input, see StreamStats.
+        EncodedFrame frame = EncodedFrame.wrap(buffer,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime()), unit.getFlags(), mRecycler,
+                index);
+        framesProduced.incrementAndGet();
+        mSink.onFrame(frame);
+        frame.release();
+    }
+
+    private void skipToKeyFrame() {
+        for (int i = 0; i < mAccessUnits.size(); i++) {
+            int next = (mNextAccessUnit + i) % mAccessUnits.size();
+            if (mAccessUnits.get(next).isKeyFrame()) {
+                mNextAccessUnit = next;
+                return;
+            }
+        }
+    }
+
+    private int acquireOutputBuffer() {
+        for (int i = 0; i < OUTPUT_BUFFER_COUNT; i++) {
+            if (mOutputBuffersInUse.compareAndSet(i, 0, 1)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Generates codec config followed by {@code count} access units, an IDR every
+     * {@code keyFrameInterval} units and non-IDR slices in between, every unit a single NAL unit.
+     * Every second non-IDR slice is not used for reference, like the upper layer of a two layer
+     * temporal structure.
+     */
+    static List<EncodedFrame> createAccessUnits(int count, int keyFrameInterval, int frameSize,
+            int keyFrameSize) {
+        List<EncodedFrame> units = new ArrayList<>();
+        ByteBuffer config = ByteBuffer.allocate(16);
+        config.put(nal(NAL_TYPE_SPS, true, 10)).put(nal(NAL_TYPE_PPS, true, 6)).flip();
+        units.add(EncodedFrame.copyOf(config, 0, EncodedFrame.FLAG_CODEC_CONFIG));
+        for (int i = 0; i < count; i++) {
+            int position = i % keyFrameInterval;
+            if (position == 0) {
+                units.add(EncodedFrame.copyOf(nal(NAL_TYPE_IDR, true, keyFrameSize), 0,
+                        EncodedFrame.FLAG_KEY_FRAME));
+            } else {
+                boolean reference = position % 2 == 0;
+                units.add(EncodedFrame.copyOf(nal(NAL_TYPE_NON_IDR, reference, frameSize), 0,
+                        reference ? 0 : EncodedFrame.FLAG_DISPOSABLE));
+            }
+        }
+        return units;
+    }
+
+    /** Returns a NAL unit with start code, payload never contains a start code emulation. */
+    private static ByteBuffer nal(int type, boolean reference, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 0xaa);
+        data[0] = 0;
+        data[1] = 0;
+        data[2] = 0;
+        data[3] = 1;
+        data[4] = (byte) ((reference ? 0x60 : 0) | type);
+        return ByteBuffer.wrap(data);
+    }
+
+    static List<EncodedFrame> readAccessUnits(String annexBFile) throws IOException {
+        return readAccessUnits(ByteBuffer.wrap(Files.readAllBytes(Paths.get(annexBFile))));
+    }
+
+    /**
+     * Splits AVC Annex-B byte stream into codec config (consecutive SPS / PPS) and access units.
+     * A new access unit starts with a delimiter or SEI, or with a slice whose
+     * {@code first_mb_in_slice} is 0, following the previous unit's slices.
+     */
+    static List<EncodedFrame> readAccessUnits(ByteBuffer annexB) {
+        List<Integer> nalStarts = new ArrayList<>();
+        int limit = annexB.limit();
+        for (int i = annexB.position(); i + 3 <= limit; i++) {
+            if (annexB.get(i) == 0 && annexB.get(i + 1) == 0 && annexB.get(i + 2) == 1) {
+                // Four byte start code belongs to the NAL unit as well.
+                nalStarts.add(i > annexB.position() && annexB.get(i - 1) == 0 ? i - 1 : i);
+                i += 2;
+            }
+        }
+
+        List<EncodedFrame> units = new ArrayList<>();
+        int unitStart = -1;
+        boolean unitIsConfig = false;
+        boolean unitHasSlice = false;
+        boolean unitIsKeyFrame = false;
+        for (int n = 0; n < nalStarts.size(); n++) {
+            int start = nalStarts.get(n);
+            int header = annexB.get(start + 2) == 1 ? start + 3 : start + 4;
+            if (header >= limit) break;
+            int type = annexB.get(header) & 0x1f;
+            boolean config = type == NAL_TYPE_SPS || type == NAL_TYPE_PPS;
+            boolean slice = type == NAL_TYPE_NON_IDR || type == NAL_TYPE_IDR;
+            boolean firstSlice = slice && header + 1 < limit
+                    && (annexB.get(header + 1) & 0x80) != 0;
+
+            if (unitStart < 0 || config != unitIsConfig || (unitHasSlice
+                    && (firstSlice || type == NAL_TYPE_AUD || type == NAL_TYPE_SEI))) {
+                addUnit(units, annexB, unitStart, start, unitIsConfig, unitHasSlice,
+                        unitIsKeyFrame);
+                unitStart = start;
+                unitIsConfig = config;
+                unitHasSlice = false;
+                unitIsKeyFrame = false;
+            }
+            unitHasSlice |= slice;
+            unitIsKeyFrame |= type == NAL_TYPE_IDR;
+        }
+        addUnit(units, annexB, unitStart, limit, unitIsConfig, unitHasSlice, unitIsKeyFrame);
+        return units;
+    }
+
+    private static void addUnit(List<EncodedFrame> units, ByteBuffer annexB, int start, int end,
+            boolean config, boolean hasSlice, boolean keyFrame) {
+        // Delimiters and SEI not followed by a slice are dropped.
+        if (start < 0 || !(config || hasSlice)) return;
+
+        ByteBuffer data = annexB.duplicate();
+        data.limit(end).position(start);
+        int flags = config ? EncodedFrame.FLAG_CODEC_CONFIG
+                : keyFrame ? EncodedFrame.FLAG_KEY_FRAME
+                : EncodedFrame.getDisposableFlag(data, false /* hevc */);
+        units.add(EncodedFrame.copyOf(data, 0, flags));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{"
+                + "frames: " + framesProduced
+                + ", outputBufferStalls: " + outputBufferStalls
+                + ", syncFramesRequested: " + syncFramesRequested
+                + "}";
+    }
+}